@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Synthetic DEN and DAT files for the benchmarks
+ * The values form a deterministic pattern that is representable by every type.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import com.kulvait.kct.imagej.denfileopener.dat.DatFileWritter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class BenchmarkFiles
+{
+    // Payload of the generated files is kept around this size
+    static final long TARGET_BYTES = 128L * 1024L * 1024L;
+
+    /**
+     * Number of slices of the given size so that the file has about TARGET_BYTES, between 8 and
+     * 64 slices.
+     */
+    public static int slices(int dimx, int dimy, DenDataType type)
+    {
+        long sliceBytes = (long)dimx * dimy * type.getSize();
+        return (int)Math.max(8L, Math.min(64L, TARGET_BYTES / sliceBytes));
+    }
+
+    public static File tempFile(String suffix) throws IOException
+    {
+        File f = File.createTempFile("kctbench", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Extended DEN of the dimensions dimx, dimy, dimz, y-major stores the columns contiguously.
+     */
+    public static File den(DenDataType type, boolean xmajor, int dimx, int dimy, int dimz)
+        throws IOException
+    {
+        File f = tempFile(".den");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try
+        {
+            FileChannel ch = raf.getChannel();
+            DenFileWritter.writeImageHeader(ch, type, new long[] { dimx, dimy, dimz });
+            if(!xmajor)
+            {
+                ByteBuffer flag = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+                flag.putShort(0, (short)1);
+                ch.write(flag, 6);
+            }
+            writePayload(ch, 4096, type, dimx, dimy, dimz);
+        } finally
+        {
+            raf.close();
+        }
+        return f;
+    }
+
+    /**
+     * Legacy DEN with 6 byte header.
+     */
+    public static File legacyDen(DenDataType type, int dimx, int dimy, int dimz)
+        throws IOException
+    {
+        File f = tempFile(".den");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try
+        {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN);
+            header.putShort((short)dimy).putShort((short)dimx).putShort((short)dimz);
+            ((Buffer)header).flip();
+            ch.write(header, 0);
+            writePayload(ch, 6, type, dimx, dimy, dimz);
+        } finally
+        {
+            raf.close();
+        }
+        return f;
+    }
+
+    public static File dat(DenDataType type, int dimx, int dimy, int dimz) throws IOException
+    {
+        File f = tempFile(".dat");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try
+        {
+            FileChannel ch = raf.getChannel();
+            byte[] header = DatFileWritter.firstLine(type, new long[] { dimx, dimy, dimz });
+            ch.write(ByteBuffer.wrap(header), 0);
+            writePayload(ch, header.length, type, dimx, dimy, dimz);
+        } finally
+        {
+            raf.close();
+        }
+        return f;
+    }
+
+    static void writePayload(FileChannel ch,
+                             long position,
+                             DenDataType type,
+                             int dimx,
+                             int dimy,
+                             int dimz) throws IOException
+    {
+        int dimImg = dimx * dimy;
+        ByteBuffer b
+            = ByteBuffer.allocate(dimImg * type.getSize()).order(ByteOrder.LITTLE_ENDIAN);
+        for(int k = 0; k != dimz; k++)
+        {
+            ((Buffer)b).clear();
+            for(int i = 0; i != dimImg; i++)
+            {
+                int v = (i * 31 + k * 17) & 0x7f;
+                switch(type)
+                {
+                case UINT8:
+                    b.put((byte)v);
+                    break;
+                case UINT16:
+                case INT16:
+                    b.putShort((short)v);
+                    break;
+                case UINT32:
+                case INT32:
+                    b.putInt(v);
+                    break;
+                case UINT64:
+                case INT64:
+                    b.putLong(v);
+                    break;
+                case FLOAT32:
+                    b.putFloat(v * 0.5f);
+                    break;
+                default:
+                    b.putDouble(v * 0.5);
+                }
+            }
+            ((Buffer)b).flip();
+            while(b.hasRemaining())
+            {
+                position += ch.write(b, position);
+            }
+        }
+    }
+}
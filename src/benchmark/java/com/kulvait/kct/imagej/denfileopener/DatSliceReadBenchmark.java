@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Slice decoding of DatVirtualStack, DAT is always x-major
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import com.kulvait.kct.imagej.denfileopener.dat.DatVirtualStack;
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Param;
+
+public class DatSliceReadBenchmark extends SliceReadBenchmark
+{
+    @Param({ "UINT16", "UINT32", "FLOAT32", "FLOAT64" })
+    String type;
+
+    @Param({ "256", "1024", "2048" })
+    int size;
+
+    File createFile() throws IOException
+    {
+        DenDataType t = DenDataType.valueOf(type);
+        return BenchmarkFiles.dat(t, size, size, BenchmarkFiles.slices(size, size, t));
+    }
+
+    ImageStack openStack(File f) throws IOException { return new DatVirtualStack(f); }
+
+    void closeStack(ImageStack stack) throws IOException { ((DatVirtualStack)stack).close(); }
+}
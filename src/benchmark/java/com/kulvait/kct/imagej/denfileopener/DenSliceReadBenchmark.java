@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Slice decoding of DenVirtualStack for the types it can display
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Param;
+
+public class DenSliceReadBenchmark extends SliceReadBenchmark
+{
+    @Param({ "UINT8", "UINT16", "UINT32", "FLOAT32", "FLOAT64" })
+    String type;
+
+    @Param({ "true", "false" })
+    boolean xmajor;
+
+    @Param({ "256", "1024", "2048" })
+    int size;
+
+    File createFile() throws IOException
+    {
+        DenDataType t = DenDataType.valueOf(type);
+        return BenchmarkFiles.den(t, xmajor, size, size, BenchmarkFiles.slices(size, size, t));
+    }
+
+    ImageStack openStack(File f) throws IOException { return new DenVirtualStack(f); }
+
+    void closeStack(ImageStack stack) throws IOException { ((DenVirtualStack)stack).close(); }
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Header parsing and format detection of every element type
+ * DAT stores only some of the types, FLOAT32 DAT is parsed for the others.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import com.kulvait.kct.imagej.denfileopener.dat.DatFileInfo;
+import com.kulvait.kct.imagej.denfileopener.dat.DatFileWritter;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HeaderParseBenchmark
+{
+    @Param({ "UINT8", "UINT16", "INT16", "UINT32", "INT32", "UINT64", "INT64", "FLOAT32",
+             "FLOAT64" })
+    String type;
+
+    File extended;
+    File legacy;
+    File dat;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        DenDataType t = DenDataType.valueOf(type);
+        extended = BenchmarkFiles.den(t, true, 64, 64, 4);
+        legacy = BenchmarkFiles.legacyDen(DenDataType.FLOAT32, 64, 64, 4);
+        DenDataType datType = DatFileWritter.typeCode(t) != null ? t : DenDataType.FLOAT32;
+        dat = BenchmarkFiles.dat(datType, 64, 64, 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        extended.delete();
+        legacy.delete();
+        dat.delete();
+    }
+
+    @Benchmark
+    public Object extendedDenInfo() { return new DenFileInfo(extended); }
+
+    @Benchmark
+    public Object legacyDenInfo() { return new DenFileInfo(legacy); }
+
+    @Benchmark
+    public Object datInfo() { return new DatFileInfo(dat); }
+
+    /**
+     * Detection without the cache of DenFormatDetector.
+     */
+    @Benchmark
+    public Object detectFormat() { return DenFormatDetector.probe(extended, extended.length()); }
+}
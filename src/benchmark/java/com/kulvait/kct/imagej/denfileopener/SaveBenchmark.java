@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Save throughput of an in memory FLOAT32 stack to DEN and DAT
+ * The output is not forced to the disk, so that the encoding and the writes are measured.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import com.kulvait.kct.imagej.denfileopener.dat.DatFileWritter;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SaveBenchmark
+{
+    @Param({ "FLOAT32", "UINT16" })
+    String outputType;
+
+    @Param({ "false", "true" })
+    boolean mappedOutput;
+
+    @Param({ "1024" })
+    int size;
+
+    ImagePlus imp;
+    File out;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        int slices = BenchmarkFiles.slices(size, size, DenDataType.FLOAT32);
+        ImageStack stack = new ImageStack(size, size);
+        for(int k = 0; k != slices; k++)
+        {
+            float[] p = new float[size * size];
+            for(int i = 0; i != p.length; i++)
+            {
+                p[i] = ((i * 31 + k * 17) & 0xfff) * 0.5f;
+            }
+            stack.addSlice(null, new FloatProcessor(size, size, p, null));
+        }
+        imp = new ImagePlus("benchmark", stack);
+        out = BenchmarkFiles.tempFile(".out");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { out.delete(); }
+
+    @Benchmark
+    public long saveDEN()
+    {
+        DenFileWritter w = new DenFileWritter();
+        w.setOutputType(DenDataType.valueOf(outputType));
+        w.setMappedOutput(mappedOutput);
+        w.setAtomicSave(false);
+        w.setDurability(Durability.NONE);
+        w.saveAsDEN(imp, out.getPath());
+        return out.length();
+    }
+
+    @Benchmark
+    public long saveDAT() throws IOException
+    {
+        DatFileWritter w = new DatFileWritter();
+        w.setOutputType(DenDataType.valueOf(outputType));
+        w.setMappedOutput(mappedOutput);
+        w.saveAsDAT(imp, out.getPath());
+        return out.length();
+    }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Slice decoding benchmarks of the virtual stacks
+ * The decode latency reads the same slice repeatedly, the sequential and random benchmarks
+ * walk through all slices of the file, their throughput is in slices per second.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+public abstract class SliceReadBenchmark
+{
+    File f;
+    ImageStack stack;
+    int slices;
+    int[] randomOrder;
+    int sequentialPosition;
+    int randomPosition;
+
+    abstract File createFile() throws IOException;
+
+    abstract ImageStack openStack(File f) throws IOException;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        f = createFile();
+        stack = openStack(f);
+        slices = stack.getSize();
+        randomOrder = new int[slices];
+        for(int i = 0; i != slices; i++)
+        {
+            randomOrder[i] = i + 1;
+        }
+        Random r = new Random(0);
+        for(int i = slices - 1; i > 0; i--)
+        {
+            int j = r.nextInt(i + 1);
+            int t = randomOrder[i];
+            randomOrder[i] = randomOrder[j];
+            randomOrder[j] = t;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        closeStack(stack);
+        f.delete();
+    }
+
+    abstract void closeStack(ImageStack stack) throws IOException;
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object decodeSlice()
+    {
+        return stack.getPixels(1 + slices / 2);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object sequentialSlices()
+    {
+        sequentialPosition = sequentialPosition % slices + 1;
+        return stack.getPixels(sequentialPosition);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object randomSlices()
+    {
+        randomPosition = (randomPosition + 1) % slices;
+        return stack.getPixels(randomOrder[randomPosition]);
+    }
+}
@@ -25,6 +25,8 @@ import ij.ImageStack;
 import ij.Menus;
 import ij.plugin.PlugIn;
 
+import com.kulvait.kct.imagej.denfileopener.DenFormatDetector;
+
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -152,6 +154,12 @@ public class HandleExtraFileTypes extends ImagePlus implements PlugIn {
 
 		// OK now we get to the interesting bit
 
+		// KCT: gzip compressed DEN is read through its seek index
+		if (name.endsWith(".den.gz")) {
+			return tryPlugIn("com.kulvait.kct.imagej.denfileopener.DenFileOpener",
+				path);
+		}
+
 		// GJ: added Biorad PIC confocal file handler
 		// ------------------------------------------
 		// These make 12345 if you read them as the right kind of short
@@ -474,6 +482,9 @@ public class HandleExtraFileTypes extends ImagePlus implements PlugIn {
 
 		// Samuel Inverso: open raw files with raw file plugin
 		if (name.endsWith(".raw")) {
+			// KCT: DEN and DAT written with the .raw extension
+			final String kct = detectedPlugIn(path);
+			if (kct != null) return tryPlugIn(kct, path);
 			return tryPlugIn("ij.plugin.Raw", path);
 		}
 
@@ -503,9 +514,30 @@ public class HandleExtraFileTypes extends ImagePlus implements PlugIn {
 			return tryPlugIn("com.kulvait.kct.imagej.denfileopener.dat.DatFileOpener", path);
 		}
 
+		// KCT: files no handler above claimed, for example extensionless DEN and
+		// DAT, are recognized by their header as the last resort
+		final String kct = detectedPlugIn(path);
+		if (kct != null) return tryPlugIn(kct, path);
+
 		return null;
 	}
 
+	/**
+	 * KCT: opener of the DEN or DAT recognized by the header, null for other
+	 * files. The result is cached per path and modification time.
+	 */
+	private String detectedPlugIn(final String path) {
+		if (0 == path.indexOf("http://")) return null;
+		switch (DenFormatDetector.detect(new File(path))) {
+			case DEN:
+				return "com.kulvait.kct.imagej.denfileopener.DenFileOpener";
+			case DAT:
+				return "com.kulvait.kct.imagej.denfileopener.dat.DatFileOpener";
+			default:
+				return null;
+		}
+	}
+
 	private ImagePlus openImage(final String directory, final String name,
 		final String path)
 	{
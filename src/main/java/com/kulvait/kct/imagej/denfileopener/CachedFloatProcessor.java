@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : FloatProcessor that reuses the 8-bit frames of DisplayFrameCache
+ * ImagePlus keeps the processor of the virtual stack and only replaces its pixels when the
+ * slice changes. The first rendering of the pixels handed out by the stack is served from the
+ * cache, later renderings might follow modifications of the pixels and are computed by
+ * FloatProcessor.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.process.FloatProcessor;
+
+public class CachedFloatProcessor extends FloatProcessor
+{
+    DisplayFrameCache frames;
+    int slice;
+    boolean fresh;
+
+    /**
+     * Processor of the unmodified pixels of 1 based slice n.
+     */
+    public CachedFloatProcessor(int width, int height, float[] pixels, DisplayFrameCache frames,
+                                int n)
+    {
+        super(width, height, pixels, null);
+        this.frames = frames;
+        frames.register(pixels, n);
+        slice = n;
+        fresh = true;
+    }
+
+    public void setPixels(Object pixels)
+    {
+        super.setPixels(pixels);
+        // The constructor of FloatProcessor might call it before frames is set
+        slice = frames == null ? 0 : frames.sliceOf(pixels);
+        fresh = slice > 0;
+    }
+
+    protected byte[] create8BitImage()
+    {
+        if(!fresh)
+        {
+            return super.create8BitImage();
+        }
+        fresh = false;
+        float min = (float)getMin();
+        float max = (float)getMax();
+        byte[] frame = frames.get(slice, min, max);
+        if(frame == null)
+        {
+            frames.put(slice, min, max, super.create8BitImage().clone());
+            return pixels8;
+        }
+        // The raster of the displayed image wraps pixels8, so that it is filled in place
+        if(pixels8 == null)
+        {
+            pixels8 = new byte[frame.length];
+        }
+        System.arraycopy(frame, 0, pixels8, 0, frame.length);
+        return pixels8;
+    }
+}
@@ -33,6 +33,7 @@ public class CheckBoxAccessory extends JComponent implements PropertyChangeListe
     JLabel noInfo;
     JLabel debugInfo;
     JCheckBox virtualCheckBox;
+    JCheckBox followCheckBox;
     boolean checkBoxInit = false;
     int preferredWidth = 150;
     int preferredHeight = 100; // Mostly ignored as it is
@@ -53,6 +54,7 @@ public class CheckBoxAccessory extends JComponent implements PropertyChangeListe
         noInfo = new JLabel();
         virtualCheckBox = new JCheckBox("Virtual stack", checkBoxInit);
         virtualCheckBox.setBounds(checkBoxPosX, checkBoxPosY, checkBoxWidth, checkBoxHeight);
+        followCheckBox = new JCheckBox("Follow growing file", false);
 
         JTextArea abc = new JTextArea();
         abc.setPreferredSize(new Dimension(preferredWidth, preferredHeight));
@@ -80,9 +82,12 @@ public class CheckBoxAccessory extends JComponent implements PropertyChangeListe
         gbc.ipady = 10;
         this.add(virtualCheckBox, gbc);
         gbc.gridy = 4;
+        gbc.ipady = 0;
+        this.add(followCheckBox, gbc);
+        gbc.gridy = 5;
         gbc.weighty = 1;
         this.add(noInfo, gbc);
-        gbc.gridy = 5;
+        gbc.gridy = 6;
         gbc.weighty = 0;
         this.add(debugInfo, gbc);
         debugInfo.setVisible(false);
@@ -97,6 +102,14 @@ public class CheckBoxAccessory extends JComponent implements PropertyChangeListe
 
     public boolean isBoxSelected() { return virtualCheckBox.isSelected(); }
 
+    /**
+     * Following the file that is being appended to requires virtual stack.
+     */
+    public boolean isFollowSelected()
+    {
+        return virtualCheckBox.isSelected() && followCheckBox.isSelected();
+    }
+
     public void propertyChange(PropertyChangeEvent e)
     {
         boolean update = false;
@@ -136,7 +149,7 @@ public class CheckBoxAccessory extends JComponent implements PropertyChangeListe
 
     public void updateInfo(File f)
     {
-        DenFileInfo inf = new DenFileInfo(f);
+        DenFileInfo inf = new DenFileInfo(f, true);
         if(inf.isValidDEN())
         {
             if(inf.isExtendedDEN())
@@ -163,6 +176,7 @@ public class CheckBoxAccessory extends JComponent implements PropertyChangeListe
             if(DIMCOUNT > 2)
             {
                 virtualCheckBox.setVisible(true);
+                followCheckBox.setVisible(true);
             }
             if(inf.elementCount < 32768)
             {
@@ -178,6 +192,7 @@ public class CheckBoxAccessory extends JComponent implements PropertyChangeListe
             typeInfo.setText("");
             dimInfo.setText("");
             virtualCheckBox.setVisible(false);
+            followCheckBox.setVisible(false);
         }
     }
 
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Appends slices at the end of the existing DEN file
+ * Slices are collected in a batch buffer and written by large sequential writes. After
+ * the data are written, the last dimension is updated by a single 4 byte write so that
+ * the header always describes the data that were completely written. Data after the end
+ * stated by the header are uncommitted and are discarded when the file is reopened. Only the
+ * extended DEN is supported, the type of the legacy DEN is inferred from the file size, so that
+ * the uncommitted data would make it invalid or even change its type.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class DenAppender implements Closeable
+{
+    File f;
+    DenFileInfo inf;
+    RandomAccessFile raf;
+    FileChannel channel;
+    SliceEncoder encoder;
+    int dimx, dimy;
+    long sliceBytes;
+    long frameSlices;
+    long lastDim;
+    long lastDimMax;
+    long lastDimPosition;
+    long committedBytes;
+    ByteBuffer batch;
+    int batchSlices;
+    int pendingSlices;
+    int appendedSlices;
+    Durability durability;
+
+    /**
+     * Opens existing x-major extended DEN with at least three dimensions. Slices are appended along the
+     * last dimension, for more than three dimensions the unit of the last dimension is committed
+     * only when all its slices are appended.
+     */
+    public DenAppender(File f) throws IOException
+    {
+        this.f = f;
+        this.inf = new DenFileInfo(f, true);
+        if(!inf.isValidDEN())
+        {
+            throw new IOException(String.format("File %s is not valid DEN!", f.getName()));
+        }
+        if(!inf.isExtendedDEN())
+        {
+            throw new IOException(String.format(
+                "Can append only to extended DEN, %s has the legacy 6 byte header.", f.getName()));
+        }
+        if(!inf.isXmajor() || inf.getDIMCOUNT() < 3)
+        {
+            throw new IOException(String.format(
+                "Can append only to x-major DEN with at least 3 dimensions, %s is %dD %s.",
+                f.getName(), inf.getDIMCOUNT(), inf.isXmajor() ? "x-major" : "y-major"));
+        }
+        encoder = new SliceEncoder(inf.getElementType());
+        if(encoder.getType() == DenDataType.INT16 || encoder.getType() == DenDataType.INT32
+           || encoder.getType() == DenDataType.UINT64 || encoder.getType() == DenDataType.INT64)
+        {
+            throw new IOException(String.format("The type %s is not implemented yet!",
+                                                encoder.getType().name()));
+        }
+        int DIMCOUNT = inf.getDIMCOUNT();
+        dimx = (int)inf.getDimx();
+        dimy = (int)inf.getDimy();
+        sliceBytes = (long)dimx * dimy * inf.getElementSize();
+        frameSlices = inf.getFrameSlices();
+        lastDim = inf.getDim(DIMCOUNT - 1);
+        lastDimPosition = inf.getLastDimPosition();
+        lastDimMax = 0xffffffffL;
+        committedBytes = inf.getElementSize() * inf.getElementCount();
+        raf = new RandomAccessFile(f, "rw");
+        try
+        {
+            channel = raf.getChannel();
+            if(raf.length() > inf.getDataByteOffset() + committedBytes)
+            {
+                System.out.printf("Discarding %d uncommitted bytes at the end of %s\n",
+                                  raf.length() - inf.getDataByteOffset() - committedBytes,
+                                  f.getPath());
+                raf.setLength(inf.getDataByteOffset() + committedBytes);
+            }
+            durability = Durability.NONE;
+            setBatchSlices((int)Math.max(1, (64L * 1024L * 1024L) / Math.max(1, sliceBytes)));
+        } catch(IOException e)
+        {
+            raf.close();
+            throw e;
+        } catch(RuntimeException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates new extended DEN with dimensions dimx, dimy, 0 to which slices can be appended.
+     */
+    public static DenAppender create(File f, int dimx, int dimy, DenDataType type)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try
+        {
+            raf.setLength(0);
+            DenFileWritter.writeImageHeader(raf.getChannel(), type, new long[] { dimx, dimy, 0 });
+        } finally
+        {
+            raf.close();
+        }
+        return new DenAppender(f);
+    }
+
+    /**
+     * Number of slices that are collected before they are written to the file. Pending slices
+     * are flushed before the batch is resized. The batch holds at least one unit of the last
+     * dimension and at most Integer.MAX_VALUE bytes, a larger unit can not be appended.
+     */
+    public synchronized void setBatchSlices(int batchSlices) throws IOException
+    {
+        if(frameSlices * sliceBytes > Integer.MAX_VALUE)
+        {
+            throw new IOException(String.format(
+                "Unit of the last dimension of %s has %d bytes, at most %d can be appended.",
+                f.getName(), frameSlices * sliceBytes, Integer.MAX_VALUE));
+        }
+        if(batch != null)
+        {
+            flush();
+        }
+        long maxSlices = Integer.MAX_VALUE / Math.max(1, sliceBytes);
+        this.batchSlices = (int)Math.max(Math.min(batchSlices, maxSlices), frameSlices);
+        ByteBuffer b = ByteBuffer.allocateDirect((int)(this.batchSlices * sliceBytes))
+                           .order(ByteOrder.LITTLE_ENDIAN);
+        if(batch != null)
+        {
+            ((Buffer)batch).flip();
+            b.put(batch);
+        }
+        batch = b;
+    }
+
+    /**
+     * Controls what is forced to the disk on each flush, before the header is updated and after.
+     */
+    public void setDurability(Durability durability) { this.durability = durability; }
+
+    public int getWidth() { return dimx; }
+
+    public int getHeight() { return dimy; }
+
+    public DenDataType getType() { return encoder.getType(); }
+
+    /**
+     * Number of slices committed to the file by the header.
+     */
+    public synchronized long getCommittedSlices() { return lastDim * frameSlices; }
+
+    /**
+     * Appends pixel array of the size width * height, it is converted to the type of the file.
+     */
+    public synchronized void append(Object pixels) throws IOException
+    {
+        if(SliceEncoder.pixelCount(pixels) != dimx * dimy)
+        {
+            throw new IOException(String.format("Slice of %d pixels can not be appended to %dx%d",
+                                                SliceEncoder.pixelCount(pixels), dimx, dimy));
+        }
+        encoder.encode(pixels, batch, appendedSlices);
+        appendedSlices++;
+        pendingSlices++;
+        if(pendingSlices == batchSlices)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the complete units of the last dimension from the batch and commits them by the
+     * header update.
+     */
+    public synchronized void flush() throws IOException
+    {
+        long units = pendingSlices / frameSlices;
+        if(units == 0)
+        {
+            return;
+        }
+        if(lastDim + units > lastDimMax)
+        {
+            throw new IOException(
+                String.format("Last dimension of %s would overflow %d", f.getName(), lastDimMax));
+        }
+        int bytes = (int)(units * frameSlices * sliceBytes);
+        ((Buffer)batch).flip();
+        ByteBuffer data = batch.duplicate();
+        ((Buffer)data).limit(bytes);
+        long pos = inf.getDataByteOffset() + committedBytes;
+        while(data.hasRemaining())
+        {
+            pos += channel.write(data, pos);
+        }
+        durability.force(channel);
+        lastDim += units;
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt((int)lastDim);
+        ((Buffer)header).flip();
+        channel.write(header, lastDimPosition);
+        durability.force(channel);
+        committedBytes += bytes;
+        pendingSlices -= (int)(units * frameSlices);
+        // Keep the incomplete unit of the last dimension
+        ((Buffer)batch).position(bytes);
+        batch.compact();
+    }
+
+    /**
+     * Flushes pending slices and closes the file, slices of an incomplete unit of the last
+     * dimension are discarded.
+     */
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            flush();
+            if(pendingSlices != 0)
+            {
+                System.out.printf("Discarding %d slices of incomplete frame of %s\n",
+                                  pendingSlices, f.getPath());
+            }
+        } finally
+        {
+            channel.close();
+            raf.close();
+        }
+    }
+}
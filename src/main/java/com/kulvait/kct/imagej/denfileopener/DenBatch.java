@@ -0,0 +1,647 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Headless batch processing of DEN and DAT files
+ * Files are processed concurrently on a fixed number of workers, the slice memory of the
+ * files in flight is bounded by a memory cap. Throughput is reported for each file.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import com.kulvait.kct.imagej.denfileopener.dat.DatDenConverter;
+import com.kulvait.kct.imagej.denfileopener.dat.DatFileInfo;
+import com.kulvait.kct.imagej.denfileopener.dat.DatVirtualStack;
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class DenBatch
+{
+    static final String[] OPERATIONS
+        = { "info", "convert", "stats", "project", "crop", "verify", "split", "compress" };
+
+    String operation;
+    List<File> files;
+    int threads;
+    long memoryCap;
+    File outputDirectory;
+    String projection;
+    // Half open ranges x0, x1, y0, y1, z0, z1, negative for the full extent
+    long[] crop;
+    int stride;
+    long units;
+    Semaphore memory;
+    int memoryPermits;
+
+    public DenBatch(String operation)
+    {
+        this.operation = operation;
+        this.files = new ArrayList<File>();
+        this.threads = Runtime.getRuntime().availableProcessors();
+        this.memoryCap = 1024L * 1024L * 1024L;
+        this.projection = "max";
+        this.crop = new long[] { -1, -1, -1, -1, -1, -1 };
+        this.stride = 1;
+        this.units = 1;
+    }
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        DenBatch batch;
+        try
+        {
+            batch = parseArguments(args);
+        } catch(IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+            return;
+        }
+        System.exit(batch.run() == 0 ? 0 : 1);
+    }
+
+    static void usage()
+    {
+        System.err.println(
+            "Usage: java -cp ij.jar:KCT_Den_File_Opener.jar "
+            + "com.kulvait.kct.imagej.denfileopener.DenBatch\n"
+            + "    <info|convert|stats|project|crop|verify|split|compress> [options]"
+            + " <file|glob|@list> ...\n"
+            + "Options:\n"
+            + "    --threads N     Number of files processed concurrently\n"
+            + "    --memory MB     Cap of the slice memory of the files in flight, default 1024\n"
+            + "    --output DIR    Directory of the outputs, default next to the input\n"
+            + "    --mode M        Projection max, min, mean or sum, default max\n"
+            + "    --crop x0:x1,y0:y1,z0:z1  Half open ranges, empty bound for the extent\n"
+            + "    --stride S      Crop every S-th slice of the z range, default 1\n"
+            + "    --units U       Split to parts of U units of the last dimension\n"
+            + "Convert writes DEN for DAT inputs and DAT for DEN inputs.\n"
+            + "Compress writes .den.gz with its seek index, .den.gz inputs are read directly.");
+    }
+
+    static DenBatch parseArguments(String[] args)
+    {
+        if(args.length < 2)
+        {
+            throw new IllegalArgumentException("Operation and files are required.");
+        }
+        boolean known = false;
+        for(String op : OPERATIONS)
+        {
+            known = known || op.equals(args[0]);
+        }
+        if(!known)
+        {
+            throw new IllegalArgumentException("Unknown operation " + args[0]);
+        }
+        DenBatch b = new DenBatch(args[0]);
+        try
+        {
+            for(int i = 1; i < args.length; i++)
+            {
+                String a = args[i];
+                if(a.startsWith("--") && i + 1 == args.length)
+                {
+                    throw new IllegalArgumentException("Missing value of " + a);
+                }
+                if(a.equals("--threads"))
+                {
+                    b.threads = Math.max(1, Integer.parseInt(args[++i]));
+                } else if(a.equals("--memory"))
+                {
+                    b.memoryCap = Long.parseLong(args[++i]) * 1024L * 1024L;
+                } else if(a.equals("--output"))
+                {
+                    b.outputDirectory = new File(args[++i]);
+                } else if(a.equals("--mode"))
+                {
+                    b.projection = args[++i];
+                } else if(a.equals("--crop"))
+                {
+                    b.crop = parseCrop(args[++i]);
+                } else if(a.equals("--units"))
+                {
+                    b.units = Math.max(1L, Long.parseLong(args[++i]));
+                } else if(a.equals("--stride"))
+                {
+                    b.stride = Math.max(1, Integer.parseInt(args[++i]));
+                } else if(a.startsWith("--"))
+                {
+                    throw new IllegalArgumentException("Unknown option " + a);
+                } else
+                {
+                    b.files.addAll(expand(a));
+                }
+            }
+        } catch(NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid number " + e.getMessage());
+        } catch(IOException e)
+        {
+            throw new IllegalArgumentException(e.toString());
+        }
+        return b;
+    }
+
+    static long[] parseCrop(String s)
+    {
+        String[] ranges = s.split(",", -1);
+        if(ranges.length != 3)
+        {
+            throw new IllegalArgumentException("Crop shall have three ranges x0:x1,y0:y1,z0:z1");
+        }
+        long[] c = new long[6];
+        for(int i = 0; i != 3; i++)
+        {
+            String[] r = ranges[i].split(":", -1);
+            if(r.length != 2)
+            {
+                throw new IllegalArgumentException("Invalid crop range " + ranges[i]);
+            }
+            c[2 * i] = r[0].isEmpty() ? -1 : Long.parseLong(r[0]);
+            c[2 * i + 1] = r[1].isEmpty() ? -1 : Long.parseLong(r[1]);
+        }
+        return c;
+    }
+
+    /**
+     * File, glob in the last path component or @list with one file per line.
+     */
+    static List<File> expand(String arg) throws IOException
+    {
+        List<File> out = new ArrayList<File>();
+        if(arg.startsWith("@"))
+        {
+            for(String line : Files.readAllLines(new File(arg.substring(1)).toPath()))
+            {
+                if(!line.trim().isEmpty())
+                {
+                    out.add(new File(line.trim()));
+                }
+            }
+        } else if(arg.contains("*") || arg.contains("?") || arg.contains("["))
+        {
+            File f = new File(arg);
+            File dir = f.getAbsoluteFile().getParentFile();
+            DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath(), f.getName());
+            try
+            {
+                List<File> matched = new ArrayList<File>();
+                for(Path p : ds)
+                {
+                    matched.add(p.toFile());
+                }
+                Collections.sort(matched);
+                out.addAll(matched);
+            } finally
+            {
+                ds.close();
+            }
+        } else
+        {
+            out.add(new File(arg));
+        }
+        return out;
+    }
+
+    /**
+     * Processes all files and returns the number of failures.
+     */
+    public int run()
+    {
+        // Permits are KiB of the memory cap
+        memoryPermits = (int)Math.max(1L, Math.min(Integer.MAX_VALUE, memoryCap / 1024L));
+        memory = new Semaphore(memoryPermits);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        long start = System.nanoTime();
+        for(final File f : files)
+        {
+            results.add(pool.submit(new Callable<Long>() {
+                public Long call() throws Exception { return processFile(f); }
+            }));
+        }
+        int failures = 0;
+        long bytes = 0;
+        for(int i = 0; i != results.size(); i++)
+        {
+            try
+            {
+                bytes += results.get(i).get();
+            } catch(ExecutionException e)
+            {
+                failures++;
+                System.out.printf("%s FAILED: %s\n", files.get(i).getPath(),
+                                  e.getCause().toString());
+            } catch(InterruptedException e)
+            {
+                failures++;
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        pool.shutdownNow();
+        double s = (System.nanoTime() - start) * 1e-9;
+        double mb = bytes / (1024.0 * 1024.0);
+        System.out.printf("%s: %d files, %d failed, %.1f MB in %.2f s (%.1f MB/s)\n", operation,
+                          files.size(), failures, mb, s, mb / s);
+        return failures;
+    }
+
+    /**
+     * Source file opened as a virtual stack of float slices.
+     */
+    static class Source
+    {
+        File f;
+        ImageStack stack;
+        DenDataType type;
+        long[] dims;
+        long dataByteOffset;
+        long payloadBytes;
+        // Bytes read by the operation when only part of the payload is needed
+        long processedBytes;
+        boolean dat;
+
+        Source(File f) throws IOException
+        {
+            this.f = f;
+            dat = DenFormatDetector.isDAT(f);
+            int dimcount;
+            if(dat)
+            {
+                DatFileInfo inf = new DatFileInfo(f);
+                if(!inf.isValidDAT())
+                {
+                    throw new IOException(String.format("File %s is not valid DAT!", f.getName()));
+                }
+                type = inf.getElementType();
+                dimcount = inf.getDIMCOUNT();
+                dims = new long[dimcount];
+                for(int i = 0; i != dimcount; i++)
+                {
+                    dims[i] = inf.getDim(i);
+                }
+                dataByteOffset = inf.getDataByteOffset();
+                payloadBytes = inf.getElementSize() * inf.getElementCount();
+            } else
+            {
+                DenFileInfo inf;
+                if(f.getName().toLowerCase().endsWith(".gz"))
+                {
+                    DenGzipVirtualStack gz = new DenGzipVirtualStack(f);
+                    stack = gz;
+                    inf = gz.getInfo();
+                } else
+                {
+                    inf = new DenFileInfo(f);
+                }
+                if(!inf.isValidDEN())
+                {
+                    throw new IOException(String.format("File %s is not valid DEN!", f.getName()));
+                }
+                type = inf.getElementType();
+                dimcount = inf.getDIMCOUNT();
+                dims = new long[dimcount];
+                for(int i = 0; i != dimcount; i++)
+                {
+                    dims[i] = inf.getDim(i);
+                }
+                dataByteOffset = inf.getDataByteOffset();
+                payloadBytes = inf.getElementSize() * inf.getElementCount();
+            }
+            processedBytes = payloadBytes;
+        }
+
+        void openStack() throws IOException
+        {
+            if(stack == null)
+            {
+                stack = dat ? new DatVirtualStack(f) : new DenVirtualStack(f);
+            }
+        }
+
+        int getWidth() { return dims.length > 0 ? (int)dims[0] : 0; }
+
+        int getHeight() { return dims.length > 1 ? (int)dims[1] : 1; }
+
+        int getSlices()
+        {
+            long n = dims.length == 0 ? 0 : 1;
+            for(int i = 2; i < dims.length; i++)
+            {
+                n *= dims[i];
+            }
+            return (int)n;
+        }
+
+        float[] slice(int n) { return (float[])stack.getPixels(n); }
+
+        void close() throws IOException
+        {
+            if(stack instanceof DenVirtualStack)
+            {
+                ((DenVirtualStack)stack).close();
+            } else if(stack instanceof DatVirtualStack)
+            {
+                ((DatVirtualStack)stack).close();
+            }
+        }
+    }
+
+    /**
+     * Bytes of the heap and of the direct buffers and mappings needed by the operation for one
+     * file.
+     */
+    long memoryEstimate(Source src)
+    {
+        long pixels = (long)src.getWidth() * src.getHeight();
+        if(operation.equals("info") || operation.equals("split"))
+        {
+            return 0;
+        } else if(operation.equals("convert"))
+        {
+            // The payload is moved by transferRange in chunks of 64MB, which the JVM maps when
+            // the kernel can not copy between the files directly
+            return Math.min(64L * 1024L * 1024L, src.payloadBytes);
+        } else if(operation.equals("crop"))
+        {
+            // Direct buffer of the output slice of the narrow regions
+            return Math.min(SubvolumeExtractor.MAX_SLICE, pixels * src.type.getSize());
+        } else if(operation.equals("compress"))
+        {
+            DenGzipWriter w = new DenGzipWriter();
+            w.setThreads(threads);
+            return w.getBufferMemory();
+        } else if(operation.equals("project"))
+        {
+            return 16L * pixels;
+        } else
+        {
+            return 8L * pixels;
+        }
+    }
+
+    long processFile(File f) throws IOException
+    {
+        Source src = new Source(f);
+        long kib = (memoryEstimate(src) + 1023L) / 1024L;
+        int permits = (int)Math.max(1L, Math.min(kib, memoryPermits));
+        memory.acquireUninterruptibly(permits);
+        long start = System.nanoTime();
+        String result;
+        try
+        {
+            if(operation.equals("info"))
+            {
+                result = info(src);
+            } else if(operation.equals("convert"))
+            {
+                result = convert(src);
+            } else if(operation.equals("crop"))
+            {
+                result = crop(src);
+            } else if(operation.equals("split"))
+            {
+                List<File> parts = DenFileCombiner.split(src.f, units, outputDirectory);
+                result = String.format("-> %d parts", parts.size());
+            } else if(operation.equals("compress"))
+            {
+                result = compress(src);
+            } else
+            {
+                src.openStack();
+                try
+                {
+                    if(operation.equals("stats"))
+                    {
+                        result = stats(src);
+                    } else if(operation.equals("project"))
+                    {
+                        result = project(src);
+                    } else
+                    {
+                        result = verify(src);
+                    }
+                } catch(RuntimeException e)
+                {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        } finally
+        {
+            src.close();
+            memory.release(permits);
+        }
+        double s = (System.nanoTime() - start) * 1e-9;
+        long bytes = operation.equals("info") ? 0 : src.processedBytes;
+        double mb = bytes / (1024.0 * 1024.0);
+        System.out.printf("%s %s: %.1f MB in %.2f s (%.1f MB/s) %s\n", f.getPath(), operation, mb,
+                          s, mb / s, result);
+        return bytes;
+    }
+
+    File outputFile(File f, String suffix)
+    {
+        File dir = outputDirectory != null ? outputDirectory : f.getAbsoluteFile().getParentFile();
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        if(dot > 0)
+        {
+            name = name.substring(0, dot);
+        }
+        return new File(dir, name + suffix);
+    }
+
+    String info(Source src)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(src.dat ? "DAT " : "DEN ").append(src.type.name()).append(' ');
+        for(int i = 0; i != src.dims.length; i++)
+        {
+            sb.append(i == 0 ? "" : "x").append(src.dims[i]);
+        }
+        sb.append(String.format(" offset=%d payload=%d", src.dataByteOffset, src.payloadBytes));
+        return sb.toString();
+    }
+
+    String convert(Source src) throws IOException
+    {
+        File out = outputFile(src.f, src.dat ? ".den" : ".dat");
+        if(src.dat)
+        {
+            DatDenConverter.datToDen(src.f, out);
+        } else
+        {
+            DatDenConverter.denToDat(src.f, out);
+        }
+        return "-> " + out.getPath();
+    }
+
+    String compress(Source src) throws IOException
+    {
+        File out = outputFile(src.f, ".den.gz");
+        DenGzipWriter w = new DenGzipWriter();
+        w.setThreads(threads);
+        DenGzipIndex index = w.compress(src.f, out);
+        return String.format("-> %s %d members ratio %.2f", out.getPath(), index.getMemberCount(),
+                             (double)src.f.length() / out.length());
+    }
+
+    String stats(Source src)
+    {
+        long count = 0, nan = 0;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        double sum = 0.0, sum2 = 0.0;
+        int n = src.getSlices();
+        for(int k = 1; k <= n; k++)
+        {
+            float[] p = src.slice(k);
+            double s = 0.0, s2 = 0.0;
+            for(int i = 0; i != p.length; i++)
+            {
+                float v = p[i];
+                if(v != v)
+                {
+                    nan++;
+                    continue;
+                }
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                s += v;
+                s2 += (double)v * v;
+            }
+            count += p.length;
+            sum += s;
+            sum2 += s2;
+        }
+        long valid = count - nan;
+        double mean = sum / valid;
+        double std = Math.sqrt(Math.max(0.0, sum2 / valid - mean * mean));
+        return String.format("count=%d nan=%d min=%g max=%g mean=%g std=%g", count, nan, min, max,
+                             mean, std);
+    }
+
+    /**
+     * Projection of all slices to the FLOAT32 x, y, 1 DEN.
+     */
+    String project(Source src) throws IOException
+    {
+        int dimImg = src.getWidth() * src.getHeight();
+        double[] acc = new double[dimImg];
+        boolean isMax = projection.equals("max");
+        boolean isMin = projection.equals("min");
+        if(!isMax && !isMin && !projection.equals("mean") && !projection.equals("sum"))
+        {
+            throw new IOException("Unknown projection " + projection);
+        }
+        Arrays.fill(acc, isMax ? Double.NEGATIVE_INFINITY
+                                         : isMin ? Double.POSITIVE_INFINITY : 0.0);
+        int n = src.getSlices();
+        for(int k = 1; k <= n; k++)
+        {
+            float[] p = src.slice(k);
+            for(int i = 0; i != dimImg; i++)
+            {
+                if(isMax)
+                {
+                    acc[i] = Math.max(acc[i], p[i]);
+                } else if(isMin)
+                {
+                    acc[i] = Math.min(acc[i], p[i]);
+                } else
+                {
+                    acc[i] += p[i];
+                }
+            }
+        }
+        File out = outputFile(src.f, "_" + projection + ".den");
+        ByteBuffer b = ByteBuffer.allocateDirect(4 * dimImg).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i = 0; i != dimImg; i++)
+        {
+            b.putFloat((float)(projection.equals("mean") ? acc[i] / n : acc[i]));
+        }
+        ((Buffer)b).flip();
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+        try
+        {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            DenFileWritter.writeImageHeader(channel, DenDataType.FLOAT32,
+                                            new long[] { src.getWidth(), src.getHeight(), 1 });
+            long pos = 4096;
+            while(b.hasRemaining())
+            {
+                pos += channel.write(b, pos);
+            }
+        } finally
+        {
+            raf.close();
+        }
+        return "-> " + out.getPath();
+    }
+
+    /**
+     * Subvolume of the source type copied by SubvolumeExtractor without decoding.
+     */
+    String crop(Source src) throws IOException
+    {
+        SubvolumeExtractor e = new SubvolumeExtractor(src.f);
+        e.setRange(crop[0] < 0 ? 0 : (int)crop[0],
+                   crop[1] < 0 ? e.getDimx() : (int)crop[1],
+                   crop[2] < 0 ? 0 : (int)crop[2],
+                   crop[3] < 0 ? e.getDimy() : (int)crop[3],
+                   crop[4] < 0 ? 0 : crop[4],
+                   crop[5] < 0 ? e.getDimz() : crop[5]);
+        e.setStride(stride);
+        long[] d = e.getOutputDims();
+        File out = outputFile(src.f, "_crop.den");
+        src.processedBytes = e.extract(out);
+        return String.format("%dx%dx%d -> %s", d[0], d[1], d[2], out.getPath());
+    }
+
+    /**
+     * Reads every slice, invalid header or size fails when opening the source.
+     */
+    String verify(Source src)
+    {
+        long nan = 0, inf = 0;
+        int n = src.getSlices();
+        for(int k = 1; k <= n; k++)
+        {
+            float[] p = src.slice(k);
+            for(int i = 0; i != p.length; i++)
+            {
+                if(p[i] != p[i])
+                {
+                    nan++;
+                } else if(Float.isInfinite(p[i]))
+                {
+                    inf++;
+                }
+            }
+        }
+        return String.format("OK slices=%d nan=%d inf=%d", n, nan, inf);
+    }
+}
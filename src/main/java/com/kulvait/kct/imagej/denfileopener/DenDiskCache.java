@@ -0,0 +1,481 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Persistent cache of the raw slices on a local disk
+ * When options.dendiskcache names a directory, for example on a local SSD, the raw bytes of the
+ * slices read from the DEN and DAT files on other file systems are stored there and the virtual
+ * stacks read them from the cache first. A volume read in a previous session is then served at
+ * the speed of the local disk. The entries are keyed by the canonical path, size and modification
+ * time of the file and by the slice, so that a modified file is not served from the cache. The
+ * size of the cache is bounded by options.dendiskcachequota in MB, default 20480, the least
+ * recently used slices are evicted first. The access order survives the sessions as the
+ * modification times of the entries.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.Prefs;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DenDiskCache
+{
+    static final String SUFFIX = ".slice";
+    // Bytes of the slices waiting to be written, further slices are not cached meanwhile
+    static final long MAX_PENDING_BYTES = 256L * 1024L * 1024L;
+
+    static DenDiskCache cache;
+
+    final File dir;
+    final long quota;
+    final String store;
+    // Entry name to its size in the access order
+    final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+    long cachedBytes;
+    final AtomicLong pendingBytes = new AtomicLong();
+    final ExecutorService writer;
+
+    DenDiskCache(File dir, long quota) throws IOException
+    {
+        this.dir = dir;
+        this.quota = quota;
+        if(!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException(String.format("Can not create the cache directory %s.", dir));
+        }
+        store = Files.getFileStore(dir.toPath()).toString();
+        writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                                            public Thread newThread(Runnable r)
+                                            {
+                                                Thread t = new Thread(r, "DEN disk cache");
+                                                t.setDaemon(true);
+                                                return t;
+                                            }
+                                        });
+        scan();
+    }
+
+    /**
+     * Cache given by the options, null when options.dendiskcache is empty or the directory can
+     * not be used. When the options change, the writes queued to the previous cache are finished
+     * in the background and the volumes switch to the new cache.
+     */
+    public static synchronized DenDiskCache get()
+    {
+        String path = Prefs.get("options.dendiskcache", "").trim();
+        long quota = (long)Math.max(0, Prefs.get("options.dendiskcachequota", 20480));
+        quota *= 1024L * 1024L;
+        // Normalized so that for example a trailing separator does not replace the cache
+        File dir = null;
+        if(!path.isEmpty())
+        {
+            dir = new File(path).getAbsoluteFile().toPath().normalize().toFile();
+        }
+        if(cache != null && (!cache.dir.equals(dir) || cache.quota != quota))
+        {
+            cache.writer.shutdown();
+            cache = null;
+        }
+        if(cache == null && dir != null && quota > 0)
+        {
+            try
+            {
+                cache = new DenDiskCache(dir, quota);
+            } catch(IOException e)
+            {
+                System.out.printf("Disk cache %s disabled: %s\n", path, e.toString());
+                Prefs.set("options.dendiskcache", "");
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Slices of the file in the cache, null when the cache is disabled or the file is stored on
+     * the same file system as the cache.
+     */
+    public static Volume forFile(File f)
+    {
+        DenDiskCache c = get();
+        if(c == null)
+        {
+            return null;
+        }
+        try
+        {
+            if(Files.getFileStore(f.toPath()).toString().equals(c.store))
+            {
+                return null;
+            }
+            String id = f.getCanonicalPath() + "\n" + f.length() + "\n" + f.lastModified();
+            return new Volume(digest(id));
+        } catch(IOException e)
+        {
+            return null;
+        }
+    }
+
+    static String digest(String id)
+    {
+        try
+        {
+            MessageDigest sha = MessageDigest.getInstance("SHA-1");
+            byte[] d = sha.digest(id.getBytes(StandardCharsets.UTF_8));
+            StringBuilder s = new StringBuilder();
+            for(int i = 0; i != 16; i++)
+            {
+                s.append(String.format("%02x", d[i]));
+            }
+            return s.toString();
+        } catch(NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Rebuilds the access order from the modification times of the entries left by the previous
+     * sessions, the unfinished writes are removed.
+     */
+    void scan()
+    {
+        File[] listed = dir.listFiles();
+        if(listed == null)
+        {
+            return;
+        }
+        final long[] modified = new long[listed.length];
+        Integer[] order = new Integer[listed.length];
+        for(int i = 0; i != listed.length; i++)
+        {
+            modified[i] = listed[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        synchronized(entries)
+        {
+            for(int i : order)
+            {
+                File e = listed[i];
+                if(e.getName().endsWith(SUFFIX))
+                {
+                    entries.put(e.getName(), e.length());
+                    cachedBytes += e.length();
+                } else if(e.getName().endsWith(SUFFIX + ".tmp"))
+                {
+                    e.delete();
+                }
+            }
+            evict(0);
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until bytes fit in the quota, called with the lock
+     * of entries held.
+     */
+    void evict(long bytes)
+    {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while(cachedBytes + bytes > quota && it.hasNext())
+        {
+            Map.Entry<String, Long> e = it.next();
+            new File(dir, e.getKey()).delete();
+            cachedBytes -= e.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Content of the entry or null, the buffer is returned by release.
+     */
+    ByteBuffer read(String name, int bytes)
+    {
+        synchronized(entries)
+        {
+            Long size = entries.get(name);
+            if(size == null || size != bytes)
+            {
+                return null;
+            }
+        }
+        final File e = new File(dir, name);
+        ByteBuffer buf = DenIoBackend.BufferPool.acquire(bytes);
+        try
+        {
+            FileChannel ch = FileChannel.open(e.toPath(), StandardOpenOption.READ);
+            try
+            {
+                DenIoBackend.readFully(ch, buf, 0);
+            } finally
+            {
+                ch.close();
+            }
+        } catch(IOException ex)
+        {
+            DenIoBackend.BufferPool.release(buf);
+            remove(name);
+            return null;
+        }
+        ((Buffer)buf).flip();
+        // Keeps the access order for the next session
+        try
+        {
+            writer.execute(new Runnable() {
+                public void run() { e.setLastModified(System.currentTimeMillis()); }
+            });
+        } catch(RejectedExecutionException ex)
+        {
+            // The cache was replaced by the options, the access order is not updated
+        }
+        return buf;
+    }
+
+    /**
+     * Stores the remaining bytes of buf in the background, the slice is skipped when the writes
+     * do not keep up with the reads.
+     */
+    void write(final String name, ByteBuffer buf)
+    {
+        final int bytes = buf.remaining();
+        if(bytes > quota || pendingBytes.get() + bytes > MAX_PENDING_BYTES)
+        {
+            return;
+        }
+        synchronized(entries)
+        {
+            if(entries.containsKey(name))
+            {
+                return;
+            }
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(bytes);
+        copy.put(buf.duplicate());
+        ((Buffer)copy).flip();
+        pendingBytes.addAndGet(bytes);
+        try
+        {
+            writer.execute(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        store(name, copy);
+                    } catch(IOException e)
+                    {
+                        System.out.printf("Can not cache %s: %s\n", name, e.toString());
+                    } finally
+                    {
+                        pendingBytes.addAndGet(-bytes);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e)
+        {
+            // The cache was replaced by the options, the slice is skipped
+            pendingBytes.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * The entry is written under a temporary name and renamed, so that an interrupted write
+     * never leaves a truncated slice.
+     */
+    void store(String name, ByteBuffer buf) throws IOException
+    {
+        int bytes = buf.remaining();
+        synchronized(entries)
+        {
+            evict(bytes);
+        }
+        File tmp = new File(dir, name + ".tmp");
+        FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                                          StandardOpenOption.TRUNCATE_EXISTING,
+                                          StandardOpenOption.WRITE);
+        try
+        {
+            while(buf.hasRemaining())
+            {
+                ch.write(buf);
+            }
+        } finally
+        {
+            ch.close();
+        }
+        File e = new File(dir, name);
+        try
+        {
+            Files.move(tmp.toPath(), e.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException ex)
+        {
+            Files.move(tmp.toPath(), e.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        synchronized(entries)
+        {
+            Long previous = entries.put(name, (long)bytes);
+            cachedBytes += bytes - (previous == null ? 0 : previous);
+        }
+    }
+
+    void remove(String name)
+    {
+        synchronized(entries)
+        {
+            Long size = entries.remove(name);
+            if(size != null)
+            {
+                cachedBytes -= size;
+            }
+        }
+        new File(dir, name).delete();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear()
+    {
+        synchronized(entries)
+        {
+            for(String name : entries.keySet())
+            {
+                new File(dir, name).delete();
+            }
+            entries.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    public File getDirectory() { return dir; }
+
+    public long getCachedBytes()
+    {
+        synchronized(entries)
+        {
+            return cachedBytes;
+        }
+    }
+
+    public int getCachedSlices()
+    {
+        synchronized(entries)
+        {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Waits until the slices passed to the cache are written.
+     */
+    public void flush() throws InterruptedException
+    {
+        final Object done = new Object();
+        synchronized(done)
+        {
+            try
+            {
+                writer.execute(new Runnable() {
+                    public void run()
+                    {
+                        synchronized(done)
+                        {
+                            done.notifyAll();
+                        }
+                    }
+                });
+            } catch(RejectedExecutionException e)
+            {
+                // The cache was replaced by the options, the queued writes finish on their own
+                writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                return;
+            }
+            done.wait();
+        }
+    }
+
+    /**
+     * Slices of one version of a file in the cache. Each call uses the cache currently given by
+     * the options, so that a volume outlives a change of the directory or the quota. When the
+     * cache is disabled meanwhile, get misses and put and remove do nothing.
+     */
+    public static class Volume
+    {
+        final String prefix;
+
+        Volume(String prefix) { this.prefix = prefix; }
+
+        String name(int n) { return prefix + "_" + n + SUFFIX; }
+
+        /**
+         * Raw bytes of 1 based slice n or null on a miss, the buffer is passed to release.
+         */
+        public ByteBuffer get(int n, int bytes)
+        {
+            DenDiskCache cache = DenDiskCache.get();
+            ByteBuffer buf = cache == null ? null : cache.read(name(n), bytes);
+            if(buf == null)
+            {
+                DenIoMetrics.DISK_CACHE_MISSES.increment();
+            } else
+            {
+                DenIoMetrics.DISK_CACHE_HITS.increment();
+            }
+            return buf;
+        }
+
+        /**
+         * Caches the remaining bytes of buf as slice n, buf is not modified.
+         */
+        public void put(int n, ByteBuffer buf)
+        {
+            DenDiskCache cache = DenDiskCache.get();
+            if(cache != null)
+            {
+                cache.write(name(n), buf);
+            }
+        }
+
+        public void release(ByteBuffer buf) { DenIoBackend.BufferPool.release(buf); }
+
+        /**
+         * Drops slice n, for example when it is written in place.
+         */
+        public void remove(int n)
+        {
+            DenDiskCache cache = DenDiskCache.get();
+            if(cache != null)
+            {
+                cache.remove(name(n));
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Settings of the local disk cache of the slices
+ * Sets the directory and the quota of DenDiskCache, an empty directory disables the cache. The
+ * argument clear removes all cached slices.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+public class DenDiskCacheOptions implements PlugIn
+{
+    public void run(String arg)
+    {
+        if(arg.equals("clear"))
+        {
+            DenDiskCache cache = DenDiskCache.get();
+            if(cache == null)
+            {
+                IJ.error("The DEN disk cache is disabled.");
+                return;
+            }
+            cache.clear();
+            IJ.showStatus(String.format("Cleared %s", cache.getDirectory().getPath()));
+            return;
+        }
+        DenDiskCache cache = DenDiskCache.get();
+        GenericDialog gd = new GenericDialog("DEN disk cache");
+        gd.addStringField("Directory", Prefs.get("options.dendiskcache", ""), 30);
+        gd.addNumericField("Quota", (int)Prefs.get("options.dendiskcachequota", 20480), 0, 8, "MB");
+        if(cache != null)
+        {
+            gd.addMessage(String.format("%d slices, %.1f MB cached", cache.getCachedSlices(),
+                                        cache.getCachedBytes() / (1024.0 * 1024.0)));
+        }
+        gd.showDialog();
+        if(gd.wasCanceled())
+            return;
+        Prefs.set("options.dendiskcache", gd.getNextString().trim());
+        Prefs.set("options.dendiskcachequota", (int)Math.max(0, gd.getNextNumber()));
+        // Applies the new settings
+        DenDiskCache.get();
+    }
+}
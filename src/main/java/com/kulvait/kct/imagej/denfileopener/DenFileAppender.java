@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Appends the slices of the current image to the existing DEN file
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+import java.io.File;
+import java.io.IOException;
+
+public class DenFileAppender implements PlugIn
+{
+    public void run(String arg)
+    {
+        String path = arg;
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if(imp == null)
+        {
+            IJ.noImage();
+            return;
+        }
+        if(arg.equals(""))
+        {
+            OpenDialog od = new OpenDialog("Append to DEN ...");
+            if(od.getFileName() == null)
+                return;
+            path = od.getDirectory() + od.getFileName();
+        }
+        imp.startTiming();
+        try
+        {
+            appendToDEN(imp, new File(path));
+        } catch(IOException e)
+        {
+            IJ.error("An error occured appending to the file.\n \n" + e);
+        }
+        IJ.showTime(imp, imp.getStartTime(), "Den Appender");
+    }
+
+    /**
+     * Appends all slices of the image, new DEN of the image type is created when the file does
+     * not exist.
+     */
+    public static void appendToDEN(ImagePlus imp, File f) throws IOException
+    {
+        DenAppender app;
+        if(f.exists())
+        {
+            app = new DenAppender(f);
+        } else
+        {
+            DenDataType typ = DenFileWritter.imageType(imp.getFileInfo().fileType);
+            if(typ == null)
+            {
+                throw new IOException("Unrecognized file format!");
+            }
+            app = DenAppender.create(f, imp.getWidth(), imp.getHeight(), typ);
+        }
+        try
+        {
+            if(app.getWidth() != imp.getWidth() || app.getHeight() != imp.getHeight())
+            {
+                throw new IOException(String.format("Can not append %dx%d slices to %dx%d DEN",
+                                                    imp.getWidth(), imp.getHeight(),
+                                                    app.getWidth(), app.getHeight()));
+            }
+            app.setDurability(Durability.DATA);
+            ImageStack stack = imp.getStack();
+            int n = stack.getSize();
+            for(int i = 0; i != n; i++)
+            {
+                IJ.showStatus("Appending: " + (i + 1) + "/" + n);
+                app.append(DenFileWritter.slicePixels(stack, i + 1));
+                IJ.showProgress(i + 1, n);
+            }
+        } finally
+        {
+            app.close();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Concatenates DEN files and splits them along the last dimension
+ * Only the headers are written, the payload ranges are moved by FileChannel.transferTo,
+ * the parts of the split are written concurrently.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+import ij.plugin.PlugIn;
+import java.awt.EventQueue;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.swing.JFileChooser;
+
+public class DenFileCombiner implements PlugIn
+{
+    static private String directory;
+    private List<File> files;
+
+    /**
+     * The argument concatenate joins the selected files in the order of their names, split
+     * divides the selected file into the parts of the given number of units of the last
+     * dimension.
+     */
+    public void run(String arg)
+    {
+        try
+        {
+            if(arg.equals("concatenate"))
+            {
+                if(!openFilesDialog("Concatenate DEN files ..."))
+                    return;
+                Collections.sort(files);
+                SaveDialog sd = new SaveDialog("Save concatenated DEN ...", "concatenated", ".den");
+                if(sd.getFileName() == null)
+                    return;
+                File out = new File(sd.getDirectory() + sd.getFileName());
+                long start = System.nanoTime();
+                long bytes = concatenate(files, out);
+                showThroughput(bytes, start);
+            }
+            if(arg.equals("split"))
+            {
+                OpenDialog od = new OpenDialog("Split DEN ...");
+                if(od.getFileName() == null)
+                    return;
+                File in = new File(od.getDirectory() + od.getFileName());
+                DenFileInfo inf = checkedInfo(in);
+                long last = inf.getDim(inf.getDIMCOUNT() - 1);
+                GenericDialog gd = new GenericDialog("Split " + in.getName());
+                gd.addMessage(String.format("Last dimension has %d units.", last));
+                gd.addNumericField("Units per part", Math.max(1, (last + 1) / 2), 0);
+                gd.showDialog();
+                if(gd.wasCanceled())
+                    return;
+                long start = System.nanoTime();
+                List<File> parts = split(in, (long)gd.getNextNumber(), null);
+                showThroughput(inf.getElementSize() * inf.getElementCount(), start);
+                IJ.log(String.format("%s split into %d parts", in.getName(), parts.size()));
+            }
+        } catch(IOException e)
+        {
+            IJ.error("An error occured writing the file.\n \n" + e);
+        }
+    }
+
+    static void showThroughput(long bytes, long start)
+    {
+        double s = (System.nanoTime() - start) * 1e-9;
+        double mb = bytes / (1024.0 * 1024.0);
+        IJ.showStatus(String.format("%.1f MB in %.2f s (%.1f MB/s)", mb, s, mb / s));
+    }
+
+    boolean openFilesDialog(final String title)
+    {
+        files = null;
+        try
+        {
+            EventQueue.invokeAndWait(new Runnable() {
+                public void run()
+                {
+                    JFileChooser fc = new JFileChooser();
+                    fc.setDialogTitle(title);
+                    fc.setMultiSelectionEnabled(true);
+                    if(directory == null)
+                    {
+                        directory = Prefs.getString(".options.denlastdir");
+                    }
+                    if(directory == null)
+                    {
+                        directory = OpenDialog.getLastDirectory();
+                    }
+                    if(directory != null)
+                    {
+                        fc.setCurrentDirectory(new File(directory));
+                    }
+                    if(fc.showOpenDialog(IJ.getInstance()) != JFileChooser.APPROVE_OPTION)
+                    {
+                        return;
+                    }
+                    files = new ArrayList<File>(Arrays.asList(fc.getSelectedFiles()));
+                    directory = fc.getCurrentDirectory().getPath() + File.separator;
+                }
+            });
+        } catch(InterruptedException e)
+        {
+            System.out.printf("%s ERROR", e.toString());
+        } catch(InvocationTargetException e)
+        {
+            System.out.printf("%s ERROR", e.toString());
+        }
+        return files != null && !files.isEmpty();
+    }
+
+    static DenFileInfo checkedInfo(File f) throws IOException
+    {
+        DenFileInfo inf = new DenFileInfo(f);
+        if(!inf.isValidDEN())
+        {
+            throw new IOException(String.format("File %s is not valid DEN!", f.getName()));
+        }
+        if(!inf.isXmajor() || inf.getDIMCOUNT() < 3)
+        {
+            throw new IOException(String.format(
+                "Can combine only x-major DEN with at least 3 dimensions, %s is %dD %s.",
+                f.getName(), inf.getDIMCOUNT(), inf.isXmajor() ? "x-major" : "y-major"));
+        }
+        return inf;
+    }
+
+    /**
+     * Joins the files along the last dimension, all other dimensions and the element type must
+     * match. Returns the number of bytes of the payload.
+     */
+    public static long concatenate(List<File> inputs, File out) throws IOException
+    {
+        if(inputs.isEmpty())
+        {
+            throw new IOException("Nothing to concatenate");
+        }
+        List<DenFileInfo> infos = new ArrayList<DenFileInfo>();
+        DenFileInfo first = checkedInfo(inputs.get(0));
+        int dimcount = first.getDIMCOUNT();
+        long last = 0;
+        for(File f : inputs)
+        {
+            if(f.getCanonicalFile().equals(out.getCanonicalFile()))
+            {
+                throw new IOException(
+                    String.format("Output %s is one of the inputs!", out.getName()));
+            }
+            DenFileInfo inf = checkedInfo(f);
+            boolean compatible = inf.getDIMCOUNT() == dimcount
+                && inf.getElementType() == first.getElementType();
+            for(int i = 0; compatible && i < dimcount - 1; i++)
+            {
+                compatible = inf.getDim(i) == first.getDim(i);
+            }
+            if(!compatible)
+            {
+                throw new IOException(String.format("File %s is not compatible with %s",
+                                                    f.getName(), inputs.get(0).getName()));
+            }
+            last += inf.getDim(dimcount - 1);
+            infos.add(inf);
+        }
+        if(last > 0xffffffffL)
+        {
+            throw new IOException(String.format("Last dimension %d would overflow", last));
+        }
+        long[] dims = new long[dimcount];
+        for(int i = 0; i != dimcount - 1; i++)
+        {
+            dims[i] = first.getDim(i);
+        }
+        dims[dimcount - 1] = last;
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+        long position = 4096;
+        try
+        {
+            raf.setLength(0);
+            FileChannel output = raf.getChannel();
+            DenFileWritter.writeImageHeader(output, first.getElementType(), dims);
+            for(int i = 0; i != inputs.size(); i++)
+            {
+                DenFileInfo inf = infos.get(i);
+                long size = inf.getElementSize() * inf.getElementCount();
+                IJ.showStatus(String.format("Concatenating %d/%d %s", i + 1, inputs.size(),
+                                            inputs.get(i).getName()));
+                FileChannel input
+                    = FileChannel.open(inputs.get(i).toPath(), StandardOpenOption.READ);
+                try
+                {
+                    DenFileWritter.transferRange(input, inf.getDataByteOffset(), size, output,
+                                                 position);
+                } finally
+                {
+                    input.close();
+                }
+                position += size;
+            }
+        } finally
+        {
+            raf.close();
+        }
+        return position - 4096;
+    }
+
+    /**
+     * Splits the file along the last dimension into the parts of units, the last part might be
+     * smaller. The parts base_000.den, base_001.den, ... are written to the directory or next to
+     * the input when it is null.
+     */
+    public static List<File> split(File in, long units, File directory) throws IOException
+    {
+        final DenFileInfo inf = checkedInfo(in);
+        final int dimcount = inf.getDIMCOUNT();
+        final long last = inf.getDim(dimcount - 1);
+        if(units < 1)
+        {
+            throw new IOException("Part shall have at least one unit of the last dimension");
+        }
+        final long unitBytes = inf.getElementSize() * inf.getElementCount() / Math.max(1, last);
+        int count = (int)((last + units - 1) / units);
+        File dir = directory != null ? directory : in.getAbsoluteFile().getParentFile();
+        String base = in.getName();
+        int dot = base.lastIndexOf('.');
+        if(dot > 0)
+        {
+            base = base.substring(0, dot);
+        }
+        final File source = in;
+        List<File> parts = new ArrayList<File>();
+        List<Future<File>> results = new ArrayList<Future<File>>();
+        ExecutorService pool
+            = Executors.newFixedThreadPool(Math.max(1, Math.min(Prefs.getThreads(), count)));
+        try
+        {
+            for(int p = 0; p != count; p++)
+            {
+                final long from = p * units;
+                final long n = Math.min(units, last - from);
+                final File out = new File(dir, String.format("%s_%03d.den", base, p));
+                parts.add(out);
+                results.add(pool.submit(new Callable<File>() {
+                    public File call() throws IOException
+                    {
+                        long[] dims = new long[dimcount];
+                        for(int i = 0; i != dimcount - 1; i++)
+                        {
+                            dims[i] = inf.getDim(i);
+                        }
+                        dims[dimcount - 1] = n;
+                        FileChannel input
+                            = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+                        try
+                        {
+                            raf.setLength(0);
+                            FileChannel output = raf.getChannel();
+                            DenFileWritter.writeImageHeader(output, inf.getElementType(), dims);
+                            // Parts run concurrently, the progress is reported by parts below
+                            DenFileWritter.transferRange(input,
+                                                         inf.getDataByteOffset() + from * unitBytes,
+                                                         n * unitBytes, output, 4096, false);
+                        } finally
+                        {
+                            raf.close();
+                            input.close();
+                        }
+                        return out;
+                    }
+                }));
+            }
+            for(int p = 0; p != count; p++)
+            {
+                results.get(p).get();
+                IJ.showStatus(String.format("Split %d/%d %s", p + 1, count,
+                                            parts.get(p).getName()));
+                IJ.showProgress(p + 1, count);
+            }
+        } catch(InterruptedException e)
+        {
+            throw new IOException(e);
+        } catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+            {
+                throw(IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally
+        {
+            pool.shutdownNow();
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Extracts the subvolume of DEN or DAT file into the new DEN
+ * When the current image is a DEN opened as a virtual stack, its file and rectangular
+ * ROI are offered as defaults.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+import ij.plugin.PlugIn;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+
+public class DenFileExtractor implements PlugIn
+{
+    public void run(String arg)
+    {
+        File source = null;
+        Rectangle roi = null;
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if(imp != null && imp.getStack() instanceof DenVirtualStack
+           && ((DenVirtualStack)imp.getStack()).isPlainDEN())
+        {
+            DenVirtualStack stack = (DenVirtualStack)imp.getStack();
+            if(stack.isEditable())
+            {
+                stack.setPixels(imp.getProcessor().getPixels(), imp.getCurrentSlice());
+            }
+            if(stack.getEditedSlices() != 0)
+            {
+                // The subvolume is read from the file, which does not hold the edits yet
+                IJ.error("Save or discard the DEN edits before extracting the subvolume.");
+                return;
+            }
+            source = stack.f;
+            if(imp.getRoi() != null)
+            {
+                roi = imp.getRoi().getBounds();
+            }
+        }
+        if(source == null)
+        {
+            OpenDialog od = new OpenDialog("Extract subvolume of ...");
+            if(od.getFileName() == null)
+                return;
+            source = new File(od.getDirectory() + od.getFileName());
+        }
+        try
+        {
+            SubvolumeExtractor e = new SubvolumeExtractor(source);
+            if(roi == null)
+            {
+                roi = new Rectangle(0, 0, e.getDimx(), e.getDimy());
+            }
+            GenericDialog gd = new GenericDialog("Extract subvolume of " + source.getName());
+            gd.addNumericField("x from", roi.x, 0);
+            gd.addNumericField("x to (exclusive)", roi.x + roi.width, 0);
+            gd.addNumericField("y from", roi.y, 0);
+            gd.addNumericField("y to (exclusive)", roi.y + roi.height, 0);
+            gd.addNumericField("z from", 0, 0);
+            gd.addNumericField("z to (exclusive)", e.getDimz(), 0);
+            gd.addNumericField("z stride", 1, 0);
+            gd.showDialog();
+            if(gd.wasCanceled())
+                return;
+            int x0 = (int)gd.getNextNumber();
+            int x1 = (int)gd.getNextNumber();
+            int y0 = (int)gd.getNextNumber();
+            int y1 = (int)gd.getNextNumber();
+            long z0 = (long)gd.getNextNumber();
+            long z1 = (long)gd.getNextNumber();
+            e.setRange(x0, x1, y0, y1, z0, z1);
+            e.setStride((int)gd.getNextNumber());
+            String name = source.getName();
+            int dot = name.lastIndexOf('.');
+            name = (dot > 0 ? name.substring(0, dot) : name) + "_sub";
+            SaveDialog sd = new SaveDialog("Save subvolume as DEN ...", name, ".den");
+            if(sd.getFileName() == null)
+                return;
+            File out = new File(sd.getDirectory() + sd.getFileName());
+            if(out.getCanonicalFile().equals(source.getCanonicalFile()))
+            {
+                IJ.error("Can not extract the subvolume into its source!\n");
+                return;
+            }
+            long start = System.nanoTime();
+            long bytes = e.extract(out);
+            double s = (System.nanoTime() - start) * 1e-9;
+            long[] d = e.getOutputDims();
+            IJ.showStatus(String.format("Extracted %dx%dx%d, %.1f MB in %.2f s", d[0], d[1], d[2],
+                                        bytes / (1024.0 * 1024.0), s));
+        } catch(IOException e)
+        {
+            IJ.error("An error occured extracting the subvolume.\n \n" + e);
+        }
+    }
+}
@@ -11,8 +11,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
@@ -49,7 +49,14 @@ public class DenFileInfo
     long dimx, dimy, dimz;
     boolean xmajor;
 
-    DenFileInfo(File f)
+    public DenFileInfo(File f) { this(f, false); }
+
+    /**
+     * When allowTrailingData is set, extended DEN might be longer than its header states. The
+     * bytes after the data are not part of the array, they are the slices being appended to the
+     * file that are not yet committed by the header update.
+     */
+    public DenFileInfo(File f, boolean allowTrailingData)
     {
         byteSize = f.length();
         dim = new long[16];
@@ -60,127 +67,165 @@ public class DenFileInfo
             validDEN = false;
             return;
         }
+        long start = System.nanoTime();
         try
         {
             RandomAccessFile df = new RandomAccessFile(f, "r");
             FileChannel inChannel = df.getChannel();
-            MappedByteBuffer buffer
-                = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(1024, inChannel.size()));
+            // A single read, mapping the header costs a page fault on the network file systems
+            ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(1024, inChannel.size()));
+            DenIoBackend.readFully(inChannel, buffer, 0);
+            ((Buffer)buffer).flip();
             buffer.order(ByteOrder.LITTLE_ENDIAN);
-            buffer.load();
-            header0 = buffer.getShort() & 0xffff;
-            header1 = buffer.getShort() & 0xffff;
-            header2 = buffer.getShort() & 0xffff;
-            // This is to convert uint16 representation to int as Java does not have signed types
-            // int is able to represent uint16s > 32768 as positive numbers, short not
-            // It is working due to two's complement representation, see
-            // https://en.wikipedia.org/wiki/Two%27s_complement
-            if(header0 == 0 && byteSize > 6)
-            {
-                int header3 = buffer.getShort() & 0xffff;
-                int header4 = buffer.getShort() & 0xffff;
-                extendedDEN = true;
-                DIMCOUNT = header1;
-                elementSize = header2;
-                xmajor = (header3 == 0);
-                elementType = DenDataType.values()[header4];
-                dataByteOffset = 4096;
-                for(int i = 0; i != DIMCOUNT; i++)
-                {
-                    dim[i] = (buffer.getInt() & 0xffffffffL);
-                }
-                if(DIMCOUNT == 0)
-                {
-                    dimx = 0;
-                    dimy = 0;
-                    dimz = 0;
-                } else if(DIMCOUNT == 1)
-                {
-                    dimx = dim[0]; // Height
-                    dimy = 1;
-                    dimz = 1;
-                } else if(DIMCOUNT == 2)
-                {
-                    dimx = dim[0]; // Height
-                    dimy = dim[1]; // Width
-                    dimz = 1;
-                } else
-                {
-                    dimx = dim[0]; // Height
-                    dimy = dim[1]; // Width
-                    dimz = dim[2];
-                    System.out.printf("dimx=%d dimy=%d dimz=%d\n", dimx, dimy, dimz);
-                    // Flat indexing for more than 3D arrays
-                    for(int i = 3; i < DIMCOUNT; i++)
-                    {
-                        dimz = dimz * dim[i];
-                        System.out.printf("dimz=%d\n", dimz);
-                    }
-                }
-            } else
-            {
-                extendedDEN = false;
-                dataByteOffset = 6;
-                DIMCOUNT = 3;
-                dim[0] = header1;
-                dim[1] = header0;
-                dim[2] = header2;
-                dimx = header1;
-                dimy = header0;
-                dimz = header2;
-                xmajor = true;
-            }
-//Problem https://stackoverflow.com/questions/48693695/java-nio-buffer-not-loading-clear-method-on-runtime
-            ((Buffer)buffer).clear();
+            parseHeader(buffer);
             inChannel.close();
             df.close();
-            elementCount = dimx * dimy * dimz;
-            if(elementCount == 0 && byteSize - dataByteOffset == 0)
+        } catch(IOException e)
+        {
+            System.out.printf("Invalid DEN: IOException");
+            validDEN = false;
+            return;
+        }
+        validate(allowTrailingData);
+        DenIoMetrics.HEADER_PARSE.since(start);
+    }
+
+    /**
+     * Header of the DEN that is not stored as a plain file, for example the decompressed start
+     * of .den.gz, byteSize is the size of the whole uncompressed DEN.
+     */
+    public DenFileInfo(ByteBuffer header, long byteSize)
+    {
+        this.byteSize = byteSize;
+        dim = new long[16];
+        Arrays.fill(dim, 1);
+        if(byteSize < 6 || header.remaining() < 6)
+        {
+            System.out.printf("Invalid DEN: byteSize < 6");
+            validDEN = false;
+            return;
+        }
+        long start = System.nanoTime();
+        header = header.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        parseHeader(header);
+        validate(false);
+        DenIoMetrics.HEADER_PARSE.since(start);
+    }
+
+    void parseHeader(ByteBuffer buffer)
+    {
+        header0 = buffer.getShort() & 0xffff;
+        header1 = buffer.getShort() & 0xffff;
+        header2 = buffer.getShort() & 0xffff;
+        // This is to convert uint16 representation to int as Java does not have signed types
+        // int is able to represent uint16s > 32768 as positive numbers, short not
+        // It is working due to two's complement representation, see
+        // https://en.wikipedia.org/wiki/Two%27s_complement
+        if(header0 == 0 && byteSize > 6)
+        {
+            int header3 = buffer.getShort() & 0xffff;
+            int header4 = buffer.getShort() & 0xffff;
+            extendedDEN = true;
+            DIMCOUNT = header1;
+            elementSize = header2;
+            xmajor = (header3 == 0);
+            elementType = DenDataType.values()[header4];
+            dataByteOffset = 4096;
+            for(int i = 0; i != DIMCOUNT; i++)
             {
-                validDEN = true;
-                return;
+                dim[i] = (buffer.getInt() & 0xffffffffL);
             }
-
-            if(!extendedDEN)
+            if(DIMCOUNT == 0)
             {
-                if((byteSize - dataByteOffset) % elementCount != 0)
-                {
-                    System.out.printf(
-                        "Invalid legacy DEN: (byteSize - dataByteOffset) % elementCount != 0");
-                    validDEN = false;
-                    return;
-                }
-                elementSize = (int)((byteSize - dataByteOffset) / elementCount);
-                if(elementSize == 2)
-                {
-                    elementType = DenDataType.UINT16;
-                } else if(elementSize == 4)
-                {
-                    elementType = DenDataType.FLOAT32;
-                } else if(elementSize == 8)
-                {
-                    elementType = DenDataType.FLOAT64;
-                } else
+                dimx = 0;
+                dimy = 0;
+                dimz = 0;
+            } else if(DIMCOUNT == 1)
+            {
+                dimx = dim[0]; // Height
+                dimy = 1;
+                dimz = 1;
+            } else if(DIMCOUNT == 2)
+            {
+                dimx = dim[0]; // Height
+                dimy = dim[1]; // Width
+                dimz = 1;
+            } else
+            {
+                dimx = dim[0]; // Height
+                dimy = dim[1]; // Width
+                dimz = dim[2];
+                // Flat indexing for more than 3D arrays
+                for(int i = 3; i < DIMCOUNT; i++)
                 {
-                    System.out.printf("Invalid legacy DEN: elementSize=%d", elementSize);
-                    validDEN = false;
-                    return;
+                    dimz = dimz * dim[i];
                 }
             }
-            elementSize = elementType.getSize();
-            if(dataByteOffset + elementSize * elementCount == byteSize)
+        } else
+        {
+            extendedDEN = false;
+            dataByteOffset = 6;
+            DIMCOUNT = 3;
+            dim[0] = header1;
+            dim[1] = header0;
+            dim[2] = header2;
+            dimx = header1;
+            dimy = header0;
+            dimz = header2;
+            xmajor = true;
+        }
+    }
+
+    void validate(boolean allowTrailingData)
+    {
+        elementCount = dimx * dimy * dimz;
+        if(elementCount == 0
+           && (byteSize == dataByteOffset
+               || (allowTrailingData && extendedDEN && byteSize > dataByteOffset)))
+        {
+            validDEN = true;
+            return;
+        }
+
+        if(!extendedDEN)
+        {
+            if((byteSize - dataByteOffset) % elementCount != 0)
+            {
+                System.out.printf(
+                    "Invalid legacy DEN: (byteSize - dataByteOffset) % elementCount != 0");
+                validDEN = false;
+                return;
+            }
+            elementSize = (int)((byteSize - dataByteOffset) / elementCount);
+            if(elementSize == 2)
+            {
+                elementType = DenDataType.UINT16;
+            } else if(elementSize == 4)
+            {
+                elementType = DenDataType.FLOAT32;
+            } else if(elementSize == 8)
             {
-                validDEN = true;
+                elementType = DenDataType.FLOAT64;
             } else
             {
-                System.out.printf(
-                    "Invalid DEN: size check dataByteOffset=%d elementSize=%d elementCount=%d byteSize=%d\n",
-                    dataByteOffset, elementSize, elementCount, byteSize);
+                System.out.printf("Invalid legacy DEN: elementSize=%d", elementSize);
                 validDEN = false;
+                return;
             }
-        } catch(IOException e)
+        }
+        elementSize = elementType.getSize();
+        if(dataByteOffset + elementSize * elementCount == byteSize)
         {
-            System.out.printf("Invalid DEN: IOException");
+            validDEN = true;
+        } else if(allowTrailingData && extendedDEN
+                  && dataByteOffset + elementSize * elementCount < byteSize)
+        {
+            validDEN = true;
+        } else
+        {
+            System.out.printf(
+                "Invalid DEN: size check dataByteOffset=%d elementSize=%d elementCount=%d byteSize=%d\n",
+                dataByteOffset, elementSize, elementCount, byteSize);
             validDEN = false;
         }
     }
@@ -210,4 +255,36 @@ public class DenFileInfo
     public long getDimz() { return dimz; }
 
     public boolean isXmajor() { return xmajor; }
+
+    /**
+     * Position of the last dimension in the header, it is stored as uint16 in legacy DEN and as
+     * uint32 in extended DEN.
+     */
+    public long getLastDimPosition() { return extendedDEN ? 10 + 4 * (DIMCOUNT - 1) : 4; }
+
+    /**
+     * Number of slices in one unit of the last dimension, the product of the dimensions between
+     * the second and the last one.
+     */
+    public long getFrameSlices()
+    {
+        long frameSlices = 1;
+        for(int i = 2; i < DIMCOUNT - 1; i++)
+        {
+            frameSlices *= dim[i];
+        }
+        return frameSlices;
+    }
+
+    /**
+     * Updates the last dimension after it was re-read from the header of the growing file.
+     */
+    void setLastDim(long lastDim)
+    {
+        long frameSlices = getFrameSlices();
+        dim[DIMCOUNT - 1] = lastDim;
+        dimz = frameSlices * lastDim;
+        elementCount = dimx * dimy * dimz;
+        byteSize = Math.max(byteSize, dataByteOffset + elementSize * elementCount);
+    }
 }
@@ -10,6 +10,7 @@ package com.kulvait.kct.imagej.denfileopener;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.Prefs;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
@@ -34,6 +35,7 @@ public class DenFileOpener implements PlugIn
         try
         {
             boolean useVirtualStack;
+            boolean follow = false;
             if(arg.equals(""))
             {
                 if(openFilesDialog() == false)
@@ -41,12 +43,13 @@ public class DenFileOpener implements PlugIn
                     return;
                 }
                 useVirtualStack = cba.isBoxSelected();
+                follow = cba.isFollowSelected();
             } else
             {
                 file = new File(arg);
                 useVirtualStack = true;
             }
-            openDen(useVirtualStack);
+            openDen(useVirtualStack, follow);
         } catch(IOException e)
         {
             System.out.printf("%s ERROR", e.toString());
@@ -109,9 +112,22 @@ public class DenFileOpener implements PlugIn
         return true;
     }
 
-    private void openDen(boolean useVirtualStack) throws IOException
+    /**
+     * With follow, the file might be being appended to, it is opened as virtual stack that is
+     * extended as the new slices are committed.
+     */
+    private void openDen(boolean useVirtualStack, boolean follow) throws IOException
     {
-        DenFileInfo inf = new DenFileInfo(file);
+        DenGzipVirtualStack gz = null;
+        DenFileInfo inf;
+        if(file.getName().toLowerCase().endsWith(".gz"))
+        {
+            gz = new DenGzipVirtualStack(file);
+            inf = gz.getInfo();
+        } else
+        {
+            inf = new DenFileInfo(file, follow);
+        }
         if(!inf.isValidDEN())
         {
             throw new RuntimeException(String.format("File %s is not valid DEN!", file.getName()));
@@ -156,9 +172,14 @@ public class DenFileOpener implements PlugIn
                 String.format("The type %s is not implemented yet!", typ.name()));
         }
         ImagePlus img;
-        if(useVirtualStack)
+        DenVirtualStack vs = null;
+        if(gz != null)
         {
-            img = new ImagePlus(file.getName(), new DenVirtualStack(file));
+            img = new ImagePlus(file.getName(), useVirtualStack ? gz : loadStack(gz));
+        } else if(useVirtualStack)
+        {
+            vs = new DenVirtualStack(file, follow);
+            img = new ImagePlus(file.getName(), vs);
         } else
         {
             FileOpener fo = new FileOpener(fi);
@@ -166,11 +187,73 @@ public class DenFileOpener implements PlugIn
         }
         if(img != null)
         {
+            long[] dim = new long[inf.getDIMCOUNT()];
+            for(int i = 0; i != dim.length; i++)
+            {
+                dim[i] = inf.getDim(i);
+            }
+            setHyperStackDimensions(img, dim);
             if(IJ.getVersion().compareTo("1.50e") >= 0)
                 img.setIJMenuBar(true);
             img.show();
-            img.setZ((int)((inf.getDim(2) + 1) / 2));
+            img.setZ((img.getNSlices() + 1) / 2);
             img.updateAndDraw();
+            if(follow && vs != null)
+            {
+                img.setSlice(img.getStackSize());
+                vs.startFollowing(img, 500);
+            }
+        }
+    }
+
+    /**
+     * Decompresses all slices of .den.gz into memory, FileOpener reads only uncompressed files.
+     */
+    static ImageStack loadStack(DenGzipVirtualStack gz) throws IOException
+    {
+        ImageStack stack = new ImageStack(gz.getWidth(), gz.getHeight());
+        try
+        {
+            for(int n = 1; n <= gz.getSize(); n++)
+            {
+                stack.addSlice(gz.getSliceLabel(n), gz.getProcessor(n));
+                IJ.showProgress(n, gz.getSize());
+            }
+        } finally
+        {
+            gz.close();
+        }
+        return stack;
+    }
+
+    /**
+     * Arrays with more than three dimensions are shown as hyperstacks, the dimensions x, y, z, t
+     * for four and x, y, c, z, t for five dimensions match the order of DenFileWritter. Further
+     * dimensions are flattened into frames.
+     */
+    public static void setHyperStackDimensions(ImagePlus img, long[] dim)
+    {
+        if(dim.length < 4)
+        {
+            return;
+        }
+        long c = 1;
+        long z = dim[2];
+        long t = dim[3];
+        if(dim.length > 4)
+        {
+            c = dim[2];
+            z = dim[3];
+            t = dim[4];
+            for(int i = 5; i < dim.length; i++)
+            {
+                t = t * dim[i];
+            }
+        }
+        if(c * z * t == img.getStackSize())
+        {
+            img.setDimensions((int)c, (int)z, (int)t);
+            img.setOpenAsHyperStack(true);
         }
     }
 }
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Process wide registry of the open DEN files
+ * The virtual stacks of the same file share one read only channel, its mapped windows and the
+ * cache of the rendered frames. Handles are reference counted and released when the last stack
+ * is closed. The stacks of the images shown in ImageJ are closed when their last window is
+ * closed, so that the descriptors and mappings do not outlive the windows.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import com.kulvait.kct.imagej.denfileopener.dat.DatVirtualStack;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+public class DenFileRegistry
+{
+    static final HashMap<String, SharedFile> files = new HashMap<String, SharedFile>();
+    // Images shown in ImageJ whose stacks are closed with the image
+    static final IdentityHashMap<ImagePlus, ImageStack> images
+        = new IdentityHashMap<ImagePlus, ImageStack>();
+    static boolean listening;
+
+    /**
+     * Read only handle of one file shared by its virtual stacks.
+     */
+    static class SharedFile
+    {
+        final String key;
+        final RandomAccessFile df;
+        final FileChannel channel;
+        final ArrayList<MappedByteBuffer> windows;
+        final DisplayFrameCache frames;
+        // Access method of the slices chosen when the file is opened
+        DenIoBackend backend;
+        int references;
+
+        SharedFile(String key, File f) throws IOException
+        {
+            this.key = key;
+            df = new RandomAccessFile(f, "r");
+            channel = df.getChannel();
+            windows = new ArrayList<MappedByteBuffer>();
+            frames = new DisplayFrameCache();
+        }
+    }
+
+    /**
+     * The canonical path and the file key, so that a file replaced under the same name, for
+     * example by an atomic save, is not served by the handle of the previous file.
+     */
+    static String key(File f) throws IOException
+    {
+        Object fileKey = null;
+        try
+        {
+            fileKey = Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+        } catch(UnsupportedOperationException e)
+        {
+        }
+        String path = f.getCanonicalPath();
+        return fileKey == null ? path + "@" + f.lastModified() : path + "@" + fileKey;
+    }
+
+    /**
+     * Handle of the file opened once for all its stacks, each call is matched by release. The
+     * backend is chosen for the slices of sliceBytes of the stack opening the file.
+     */
+    static synchronized SharedFile acquire(File f, long sliceBytes) throws IOException
+    {
+        listen();
+        String key = key(f);
+        SharedFile s = files.get(key);
+        if(s == null)
+        {
+            s = new SharedFile(key, f);
+            try
+            {
+                s.backend = DenIoBackend.open(f, s.channel, sliceBytes);
+            } catch(IOException e)
+            {
+                s.channel.close();
+                s.df.close();
+                throw e;
+            }
+            files.put(key, s);
+        }
+        s.references++;
+        return s;
+    }
+
+    static synchronized void release(SharedFile s) throws IOException
+    {
+        if(--s.references > 0)
+        {
+            return;
+        }
+        files.remove(s.key);
+        synchronized(s.windows)
+        {
+            // The mappings are unmapped when collected
+            s.windows.clear();
+        }
+        s.frames.clear();
+        s.backend.close();
+        s.channel.close();
+        s.df.close();
+    }
+
+    /**
+     * True when a virtual stack of the file is open.
+     */
+    public static synchronized boolean isOpen(File f)
+    {
+        try
+        {
+            String path = f.getCanonicalPath() + "@";
+            for(String key : files.keySet())
+            {
+                if(key.startsWith(path))
+                {
+                    return true;
+                }
+            }
+        } catch(IOException e)
+        {
+        }
+        return false;
+    }
+
+    /**
+     * Number of the distinct files held open by the virtual stacks.
+     */
+    public static synchronized int getOpenFileCount() { return files.size(); }
+
+    /**
+     * Registers the listener closing the stacks of the closed images, ImagePlus calls it for the
+     * images that are shown.
+     */
+    public static synchronized void listen()
+    {
+        if(listening)
+        {
+            return;
+        }
+        listening = true;
+        ImagePlus.addImageListener(new ImageListener() {
+            public void imageOpened(ImagePlus imp)
+            {
+                // ImagePlus creates the stack of a single image on demand, which is avoided
+                ImageStack stack = imp.getStackSize() > 1
+                                           || imp.getProcessor() instanceof CachedFloatProcessor
+                                       ? imp.getStack()
+                                       : null;
+                if(stack instanceof DenVirtualStack || stack instanceof DatVirtualStack)
+                {
+                    synchronized(DenFileRegistry.class)
+                    {
+                        images.put(imp, stack);
+                    }
+                }
+            }
+
+            public void imageClosed(ImagePlus imp)
+            {
+                ImageStack stack;
+                synchronized(DenFileRegistry.class)
+                {
+                    stack = images.remove(imp);
+                    if(stack == null || images.containsValue(stack))
+                    {
+                        return;
+                    }
+                }
+                try
+                {
+                    if(stack instanceof DenVirtualStack)
+                    {
+                        ((DenVirtualStack)stack).close();
+                    } else
+                    {
+                        ((DatVirtualStack)stack).close();
+                    }
+                } catch(IOException e)
+                {
+                    System.out.printf("Can not close %s: %s\n", imp.getTitle(), e.toString());
+                }
+            }
+
+            public void imageUpdated(ImagePlus imp) {}
+        });
+    }
+}
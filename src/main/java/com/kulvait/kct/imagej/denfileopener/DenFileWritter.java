@@ -12,23 +12,29 @@ package com.kulvait.kct.imagej.denfileopener;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.VirtualStack;
 import ij.Prefs;
 import ij.WindowManager;
+import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
 import ij.io.OpenDialog;
 import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
 import java.awt.EventQueue;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import javax.swing.JFileChooser;
@@ -37,9 +43,30 @@ import javax.swing.JFileChooser;
          The "Open All Files in Folder" check box in the dialog is ignored. */
 public class DenFileWritter implements PlugIn
 {
+    static final String[] OUTPUT_TYPES
+        = { "Same as image", "UINT8", "UINT16", "UINT32", "FLOAT32", "FLOAT64" };
+    static final String[] VALUE_MAPPINGS = { "None", "Explicit range", "Percentile range" };
+    static final String[] ROUNDINGS = { "Truncate", "Round", "Dither" };
+    static final String[] DURABILITIES = { "None", "Data", "Data and metadata" };
+
     static private String directory;
     private File file;
     private FileInfo fi;
+    private long[] dims;
+    private boolean mappedOutput = Prefs.getBoolean("options.denmappedoutput", false);
+    // Null for the type of the image
+    private DenDataType outputType = null;
+    private int valueMapping = 0;
+    private double rangeMin = 0.0;
+    private double rangeMax = 1.0;
+    private double lowPercentile = 0.1;
+    private double highPercentile = 99.9;
+    private SliceEncoder.Rounding rounding = SliceEncoder.Rounding.ROUND;
+    // Atomic save and forcing the data slow down every save, both are opt-in
+    private boolean atomicSave = Prefs.getBoolean("options.denatomicsave", false);
+    private Durability durability
+        = Durability.valueOf(Prefs.get("options.dendurability", Durability.NONE.name()));
+    private boolean presize = Prefs.getBoolean("options.denpresize", false);
 
     public void run(String arg)
     {
@@ -58,45 +85,215 @@ public class DenFileWritter implements PlugIn
             if(name == null)
                 return;
             path = dir + name;
+            if(!showOptionsDialog())
+                return;
         }
         imp.startTiming();
         saveAsDEN(imp, path);
         IJ.showTime(imp, imp.getStartTime(), "Den Writter");
     }
 
-    private void saveAsDEN(ImagePlus imp, String path)
+    boolean showOptionsDialog()
+    {
+        GenericDialog gd = new GenericDialog("DEN save options");
+        gd.addCheckbox("Memory mapped output", mappedOutput);
+        gd.addChoice("Output type", OUTPUT_TYPES,
+                     Prefs.get("options.denoutputtype", OUTPUT_TYPES[0]));
+        gd.addChoice("Value mapping", VALUE_MAPPINGS,
+                     Prefs.get("options.denvaluemapping", VALUE_MAPPINGS[0]));
+        gd.addNumericField("Range min", Prefs.get("options.denrangemin", rangeMin), 4);
+        gd.addNumericField("Range max", Prefs.get("options.denrangemax", rangeMax), 4);
+        gd.addNumericField("Low percentile",
+                           Prefs.get("options.denlowpercentile", lowPercentile), 3);
+        gd.addNumericField("High percentile",
+                           Prefs.get("options.denhighpercentile", highPercentile), 3);
+        gd.addChoice("Rounding", ROUNDINGS, Prefs.get("options.denrounding", ROUNDINGS[1]));
+        gd.addCheckbox("Atomic save via temporary file", atomicSave);
+        gd.addChoice("Durability", DURABILITIES, DURABILITIES[durability.ordinal()]);
+        gd.addCheckbox("Set final file size before writing", presize);
+        gd.showDialog();
+        if(gd.wasCanceled())
+            return false;
+        mappedOutput = gd.getNextBoolean();
+        int typeIndex = gd.getNextChoiceIndex();
+        outputType = typeIndex == 0 ? null : DenDataType.valueOf(OUTPUT_TYPES[typeIndex]);
+        valueMapping = gd.getNextChoiceIndex();
+        rangeMin = gd.getNextNumber();
+        rangeMax = gd.getNextNumber();
+        lowPercentile = gd.getNextNumber();
+        highPercentile = gd.getNextNumber();
+        int roundingIndex = gd.getNextChoiceIndex();
+        rounding = SliceEncoder.Rounding.values()[roundingIndex];
+        atomicSave = gd.getNextBoolean();
+        durability = Durability.values()[gd.getNextChoiceIndex()];
+        presize = gd.getNextBoolean();
+        Prefs.set("options.denmappedoutput", mappedOutput);
+        Prefs.set("options.denoutputtype", OUTPUT_TYPES[typeIndex]);
+        Prefs.set("options.denvaluemapping", VALUE_MAPPINGS[valueMapping]);
+        Prefs.set("options.denrangemin", rangeMin);
+        Prefs.set("options.denrangemax", rangeMax);
+        Prefs.set("options.denlowpercentile", lowPercentile);
+        Prefs.set("options.denhighpercentile", highPercentile);
+        Prefs.set("options.denrounding", ROUNDINGS[roundingIndex]);
+        Prefs.set("options.denatomicsave", atomicSave);
+        Prefs.set("options.dendurability", durability.name());
+        Prefs.set("options.denpresize", presize);
+        return true;
+    }
+
+    /**
+     * When set, the file is presized and the slices are encoded directly into its read-write
+     * mapping instead of going through the output buffers.
+     */
+    public void setMappedOutput(boolean mappedOutput) { this.mappedOutput = mappedOutput; }
+
+    /**
+     * Type of the DEN elements, null to use the type of the image.
+     */
+    public void setOutputType(DenDataType outputType) { this.outputType = outputType; }
+
+    /**
+     * Values in [min, max] are mapped linearly to the full range of the integer output type.
+     */
+    public void setLinearRange(double min, double max)
+    {
+        valueMapping = 1;
+        rangeMin = min;
+        rangeMax = max;
+    }
+
+    /**
+     * The range mapped to the integer output type is given by the percentiles of the stack.
+     */
+    public void setPercentileRange(double low, double high)
+    {
+        valueMapping = 2;
+        lowPercentile = low;
+        highPercentile = high;
+    }
+
+    public void setRounding(SliceEncoder.Rounding rounding) { this.rounding = rounding; }
+
+    /**
+     * When set, the file is written to a temporary file in the same directory that is renamed to
+     * the target only when it is complete, so that the target is never left truncated.
+     */
+    public void setAtomicSave(boolean atomicSave) { this.atomicSave = atomicSave; }
+
+    /**
+     * What is forced to the disk before the file is closed and renamed.
+     */
+    public void setDurability(Durability durability) { this.durability = durability; }
+
+    /**
+     * When set, the file is extended to its final length before the data are written, so that
+     * the positional writes do not grow it. The extended file is sparse, no disk blocks are
+     * reserved in advance.
+     */
+    public void setPresize(boolean presize) { this.presize = presize; }
+
+    /**
+     * Saves the image with the options set on this writer, errors are reported by IJ.error.
+     */
+    public void saveAsDEN(ImagePlus imp, String path)
     {
         try
         {
             fi = imp.getFileInfo();
-            if(fi.fileType == FileInfo.GRAY8 || fi.fileType == FileInfo.GRAY16_UNSIGNED
-               || fi.fileType == FileInfo.GRAY32_FLOAT || fi.fileType == FileInfo.GRAY64_FLOAT)
+            dims = imageDims(imp, fi);
+            ImageStack stack = imp.getStack();
+            DenDataType imageType = imageType(fi.fileType);
+            if(imageType == null)
+            {
+                IJ.error("Unrecognized file format!\n");
+                return;
+            }
+            boolean copyPayload = false;
+            boolean quantized = false;
+            SliceEncoder encoder = new SliceEncoder(outputType == null ? imageType : outputType);
+            if(!atomicSave && DenFileRegistry.isOpen(new File(path)))
+            {
+                // Truncating the file would break the mappings of its virtual stacks
+                IJ.error("Can not overwrite DEN file opened as a virtual stack!\n"
+                         + "Close it or use the atomic save.\n");
+                return;
+            }
+            if(stack instanceof DenVirtualStack)
             {
-                OutputStream output = new BufferedOutputStream(new FileOutputStream(path));
-                writeImageHeader(output, fi.fileType);
-                ImageStack stack = imp.getStack();
-                for(int i = 0; i < fi.nImages; i++)
+                DenVirtualStack src = (DenVirtualStack)stack;
+                if(new File(path).getCanonicalFile().equals(src.f.getCanonicalFile()))
                 {
-                    IJ.showStatus("Writing: " + (i + 1) + "/" + fi.nImages);
-                    switch(fi.fileType)
+                    IJ.error("Can not overwrite DEN file opened as a virtual stack!\n");
+                    return;
+                }
+                if(src.isEditable())
+                {
+                    // ImagePlus passes the current slice to the stack only when leaving it
+                    src.setPixels(imp.getProcessor().getPixels(), imp.getCurrentSlice());
+                }
+                // The file does not hold the unsaved edits
+                if(src.getEditedSlices() == 0 && canCopyPayload(src))
+                {
+                    encoder = new SliceEncoder(src.inf.getElementType());
+                    copyPayload = true;
+                    // Keep the dimensions of the source exactly
+                    dims = new long[src.inf.getDIMCOUNT()];
+                    for(int i = 0; i != dims.length; i++)
                     {
-                    case FileInfo.GRAY16_UNSIGNED:
-                        write16Image(output, (short[])stack.getPixels(i + 1));
-                        break;
-                    case FileInfo.GRAY32_FLOAT:
-                        writeFloatImage(output, (float[])stack.getPixels(i + 1));
-                        break;
-                    case FileInfo.GRAY64_FLOAT:
-                        writeDoubleImage(output, (double[])stack.getPixels(i + 1));
-                        break;
+                        dims[i] = src.inf.getDim(i);
                     }
-                    IJ.showProgress((double)(i + 1) / fi.nImages);
                 }
-                output.close();
-
-            } else
+            }
+            if(!copyPayload && encoder.isIntegerType() && valueMapping != 0)
             {
-                IJ.error("Unrecognized file format!\n");
+                double min = rangeMin;
+                double max = rangeMax;
+                if(valueMapping == 2)
+                {
+                    StackHistogram h = StackHistogram.of(stack);
+                    min = h.percentile(lowPercentile);
+                    max = h.percentile(highPercentile);
+                }
+                encoder.setLinearRange(min, max);
+                IJ.log(String.format("%s: stored value = (value - %g) * %g", path,
+                                     encoder.getOffset(), encoder.getScale()));
+                quantized = true;
+            }
+            encoder.setRounding(rounding);
+            long payloadBytes
+                = (long)fi.nImages * fi.width * fi.height * encoder.getType().getSize();
+            if(copyPayload)
+            {
+                DenVirtualStack src = (DenVirtualStack)stack;
+                payloadBytes = src.inf.getElementSize() * src.inf.getElementCount();
+            }
+            File target = new File(path);
+            File out = target;
+            if(atomicSave)
+            {
+                // Same directory so that the rename does not cross file systems
+                out = File.createTempFile("." + target.getName() + ".", ".tmp",
+                                          target.getAbsoluteFile().getParentFile());
+            }
+            boolean written = false;
+            long start = System.nanoTime();
+            try
+            {
+                writeDEN(out, stack, encoder, copyPayload, 4096L + payloadBytes);
+                if(atomicSave)
+                {
+                    moveIntoPlace(out, target);
+                }
+                written = true;
+                writeQuantization(target, quantized ? encoder : null);
+                DenIoMetrics.SAVE.since(start);
+                DenIoMetrics.BYTES_WRITTEN.add(4096L + payloadBytes);
+            } finally
+            {
+                if(atomicSave && !written)
+                {
+                    out.delete();
+                }
             }
         } catch(IOException e)
         {
@@ -104,144 +301,326 @@ public class DenFileWritter implements PlugIn
         }
     }
 
-    private void uint16ToBuffer(int val, byte[] buffer, int initpos)
+    /**
+     * Sidecar file.den.json with the linear mapping of the quantized values, so that the original
+     * values might be recovered by value = stored / scale + offset. The sidecar of a previous
+     * content is removed when encoder is null.
+     */
+    static void writeQuantization(File target, SliceEncoder encoder) throws IOException
     {
-        buffer[initpos] = (byte)val;
-        buffer[initpos+1] = (byte)(val >>> 8);
+        File sidecar = new File(target.getPath() + ".json");
+        if(encoder == null)
+        {
+            sidecar.delete();
+            return;
+        }
+        String json = String.format(
+            "{\n  \"type\": \"%s\",\n  \"offset\": %s,\n  \"scale\": %s,\n"
+                + "  \"mapping\": \"stored = (value - offset) * scale\"\n}\n",
+            encoder.getType().name(), Double.toString(encoder.getOffset()),
+            Double.toString(encoder.getScale()));
+        Files.write(sidecar.toPath(), json.getBytes(StandardCharsets.UTF_8));
     }
 
-    private void uint32ToBuffer(int val, byte[] buffer, int initpos)
+    private void writeDEN(File f,
+                          ImageStack stack,
+                          SliceEncoder encoder,
+                          boolean copyPayload,
+                          long fileSize) throws IOException
     {
-        buffer[initpos] = (byte)val;
-        buffer[initpos+1] = (byte)(val >>> 8);
-        buffer[initpos+2] = (byte)(val >>> 16);
-        buffer[initpos+3] = (byte)(val >>> 24);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        FileChannel output = raf.getChannel();
+        try
+        {
+            raf.setLength(0);
+            if(presize || (mappedOutput && !copyPayload))
+            {
+                raf.setLength(fileSize);
+            }
+            writeImageHeader(output, encoder.getType(), dims);
+            if(copyPayload)
+            {
+                copyDenPayload(output, (DenVirtualStack)stack);
+            } else
+            {
+                writeSlices(output, f, stack, encoder);
+            }
+            durability.force(output);
+        } finally
+        {
+            output.close();
+            raf.close();
+        }
     }
 
-    void writeImageHeader(OutputStream out, int fileType) throws IOException
+    /**
+     * Atomically renames the completely written temporary file to the target. With the metadata
+     * durability the directory is forced as well, so that the rename survives a crash, which is
+     * not possible on all platforms.
+     */
+    private void moveIntoPlace(File tmp, File target) throws IOException
     {
-        byte[] buffer = new byte[4096];
-        uint16ToBuffer(0, buffer, 0);
-        uint16ToBuffer(3, buffer, 2); // Dimensions
-        switch(fileType)
+        try
         {
-        case FileInfo.GRAY16_UNSIGNED:
-            uint16ToBuffer(2, buffer, 4); // Dimensions
-            break;
-        case FileInfo.GRAY32_FLOAT:
-            uint16ToBuffer(4, buffer, 4); // Dimensions
-            break;
-        case FileInfo.GRAY64_FLOAT:
-            uint16ToBuffer(8, buffer, 4); // Dimensions
-            break;
-        default:
-            throw new IOException("Uinimplemented filetype");
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch(AtomicMoveNotSupportedException e)
+        {
+            System.out.printf("Atomic move to %s is not supported, replacing the file\n",
+                              target.getPath());
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
-        uint16ToBuffer(0, buffer, 6); // X-major
+        if(durability == Durability.METADATA)
+        {
+            try
+            {
+                FileChannel dir = FileChannel.open(
+                    target.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+                try
+                {
+                    dir.force(true);
+                } finally
+                {
+                    dir.close();
+                }
+            } catch(IOException e)
+            {
+                System.out.printf("Can not force the directory of %s: %s\n", target.getPath(),
+                                  e.toString());
+            }
+        }
+    }
+
+    public static DenDataType imageType(int fileType)
+    {
         switch(fileType)
         {
+        case FileInfo.GRAY8:
+            return DenDataType.UINT8;
         case FileInfo.GRAY16_UNSIGNED:
-            uint16ToBuffer(0, buffer, 8); // UINT16
-            break;
+            return DenDataType.UINT16;
         case FileInfo.GRAY32_FLOAT:
-            uint16ToBuffer(6, buffer, 8); // FLOAT32
-            break;
+            return DenDataType.FLOAT32;
         case FileInfo.GRAY64_FLOAT:
-            uint16ToBuffer(7, buffer, 8); // FLOAT64
-            break;
+            return DenDataType.FLOAT64;
         default:
-            throw new IOException("Uinimplemented filetype");
+            return null;
         }
-        int dimx = fi.width;
-        int dimy = fi.height;
-        int dimz = fi.nImages;
-        uint32ToBuffer(dimx, buffer, 10);
-        uint32ToBuffer(dimy, buffer, 14);
-        uint32ToBuffer(dimz, buffer, 18);
-        out.write(buffer, 0, 4096);
     }
 
-    void write16Image(OutputStream out, short[] pixels) throws IOException
+    /**
+     * Dimensions of the extended DEN in the order of the ImageJ stack, where the channel index is
+     * the fastest and the frame index the slowest, so that the slices are written sequentially.
+     * It is x, y, c, z, t for multichannel hyperstacks, x, y, z, t for multiframe hyperstacks and
+     * x, y, z otherwise.
+     */
+    public static long[] imageDims(ImagePlus imp, FileInfo fi)
     {
-        int bytesWritten = 0;
-        int size = fi.width * fi.height * 2;
-        int count = 8192;
-        byte[] buffer = new byte[count];
-
-        while(bytesWritten < size)
-        {
-            if((bytesWritten + count) > size)
-                count = size - bytesWritten;
-            int j = bytesWritten / 2;
-            int value;
-            // Little endian
-            for(int i = 0; i < count; i += 2)
+        long c = imp.getNChannels();
+        long z = imp.getNSlices();
+        long t = imp.getNFrames();
+        if(c * z * t == fi.nImages)
+        {
+            if(c > 1)
+            {
+                return new long[] { fi.width, fi.height, c, z, t };
+            } else if(t > 1)
             {
-                value = pixels[j];
-                buffer[i] = (byte)value;
-                buffer[i + 1] = (byte)(value >>> 8);
-                j++;
+                return new long[] { fi.width, fi.height, z, t };
             }
-            out.write(buffer, 0, count);
-            bytesWritten += count;
+        }
+        return new long[] { fi.width, fi.height, fi.nImages };
+    }
+
+    /**
+     * When the source DEN is x-major and no conversion to other type or value mapping is
+     * requested, the payload can be copied without decoding as the data layout is the same.
+     */
+    boolean canCopyPayload(DenVirtualStack src)
+    {
+        if(!src.isPlainDEN() || !src.inf.isXmajor() || src.getSize() != fi.nImages)
+        {
+            return false;
+        }
+        DenDataType srcType = src.inf.getElementType();
+        if(valueMapping != 0 || (outputType != null && outputType != srcType))
+        {
+            return false;
+        }
+        switch(srcType)
+        {
+        case UINT8:
+        case UINT16:
+        case UINT32:
+        case FLOAT32:
+        case FLOAT64:
+            return true;
+        default:
+            return false;
         }
     }
 
-    void writeFloatImage(OutputStream out, float[] pixels) throws IOException
+    /**
+     * File to file copy of the payload of the source DEN, the kernel moves the data without
+     * touching the Java heap.
+     */
+    void copyDenPayload(FileChannel output, DenVirtualStack src) throws IOException
     {
-        long bytesWritten = 0L;
-        long size = 4L * fi.width * fi.height;
-        int count = 8192;
-        byte[] buffer = new byte[count];
-        int tmp;
-        while(bytesWritten < size)
-        {
-            if((bytesWritten + count) > size)
-                count = (int)(size - bytesWritten);
-            int j = (int)(bytesWritten / 4L);
-            // Little endian
-            for(int i = 0; i < count; i += 4)
+        FileChannel input = FileChannel.open(src.f.toPath(), StandardOpenOption.READ);
+        try
+        {
+            long size = src.inf.getElementSize() * src.inf.getElementCount();
+            IJ.showStatus(String.format("Copying %d bytes from %s", size, src.f.getName()));
+            transferRange(input, src.inf.getDataByteOffset(), size, output, 4096);
+        } finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Copies size bytes from the offset of the input to the position of the output by
+     * FileChannel.transferTo in 64MB chunks, so that the data are moved by the kernel.
+     */
+    public static void transferRange(FileChannel input,
+                                     long offset,
+                                     long size,
+                                     FileChannel output,
+                                     long position) throws IOException
+    {
+        transferRange(input, offset, size, output, position, true);
+    }
+
+    /**
+     * Without progress the caller reports the progress of the ranges it is composed of.
+     */
+    public static void transferRange(FileChannel input,
+                                     long offset,
+                                     long size,
+                                     FileChannel output,
+                                     long position,
+                                     boolean progress) throws IOException
+    {
+        long chunk = 64L * 1024L * 1024L;
+        long copied = 0;
+        output.position(position);
+        while(copied < size)
+        {
+            long n = input.transferTo(offset + copied, Math.min(chunk, size - copied), output);
+            if(n <= 0)
             {
-                tmp = Float.floatToRawIntBits(pixels[j]);
-                buffer[i] = (byte)tmp;
-                buffer[i + 1] = (byte)(tmp >> 8);
-                buffer[i + 2] = (byte)(tmp >> 16);
-                buffer[i + 3] = (byte)(tmp >> 24);
-                j++;
+                throw new IOException(
+                    String.format("Unexpected end of input after %d of %d bytes", copied, size));
+            }
+            copied += n;
+            if(progress)
+            {
+                IJ.showProgress((double)copied / size);
             }
-            out.write(buffer, 0, count);
-            bytesWritten += count;
         }
     }
 
-    void writeDoubleImage(OutputStream out, double[] pixels) throws IOException
+    /**
+     * Slices are encoded on the worker threads and written by positional writes to the offset
+     * 4096 + k * sliceBytes, so that they might be completed in any order. The conversion to the
+     * output type runs on the worker threads as well.
+     */
+    void writeSlices(FileChannel output,
+                     File f,
+                     final ImageStack stack,
+                     final SliceEncoder encoder) throws IOException
     {
-        long bytesWritten = 0L;
-        long size = 8L * fi.width * fi.height;
-        int count = 8192;
-        byte[] buffer = new byte[count];
-        long tmp;
-        while(bytesWritten < size)
-        {
-            if((bytesWritten + count) > size)
-                count = (int)(size - bytesWritten);
-            int j = (int)(bytesWritten / 4L);
-            // Little endian
-            for(int i = 0; i < count; i += 8)
+        int sliceBytes = fi.width * fi.height * encoder.getType().getSize();
+        ParallelSliceWriter w = new ParallelSliceWriter(output, 4096, sliceBytes, fi.nImages);
+        w.setMappedOutput(mappedOutput);
+        w.setEventSource(f, encoder.getType());
+        IJ.showStatus(String.format("Writing %d slices using %d threads", fi.nImages,
+                                    w.getThreads()));
+        w.write(new ParallelSliceWriter.SliceSource() {
+            public Object fetch(int k) { return slicePixels(stack, k + 1); }
+
+            public void encode(int k, Object pixels, ByteBuffer out) throws IOException
             {
-                tmp = Double.doubleToRawLongBits(pixels[j]);
-                buffer[i] = (byte)tmp;
-                buffer[i + 1] = (byte)(tmp >> 8);
-                buffer[i + 2] = (byte)(tmp >> 16);
-                buffer[i + 3] = (byte)(tmp >> 24);
-                buffer[i + 4] = (byte)(tmp >> 32);
-                buffer[i + 5] = (byte)(tmp >> 40);
-                buffer[i + 6] = (byte)(tmp >> 48);
-                buffer[i + 7] = (byte)(tmp >> 56);
-                j++;
+                encoder.encode(pixels, out, k);
             }
-            out.write(buffer, 0, count);
-            bytesWritten += count;
+        });
+    }
+
+    /**
+     * Pixels of the 1 based slice n that are not modified by the subsequent calls. ImageJ
+     * VirtualStack decodes a new array for each call, other virtual stacks such as
+     * DatVirtualStack might reuse the pixel array for the next slice.
+     */
+    public static Object slicePixels(ImageStack stack, int n)
+    {
+        if(stack instanceof DenVirtualStack)
+        {
+            DenVirtualStack vs = (DenVirtualStack)stack;
+            return vs.readSlice(n, new float[vs.getWidth() * vs.getHeight()]);
+        }
+        Object pixels = stack.getPixels(n);
+        if(stack.isVirtual() && !(stack instanceof VirtualStack))
+        {
+            pixels = copyPixels(pixels);
+        }
+        return pixels;
+    }
+
+    static Object copyPixels(Object pixels)
+    {
+        if(pixels instanceof byte[])
+        {
+            return ((byte[])pixels).clone();
+        } else if(pixels instanceof short[])
+        {
+            return ((short[])pixels).clone();
+        } else if(pixels instanceof float[])
+        {
+            return ((float[])pixels).clone();
+        } else if(pixels instanceof double[])
+        {
+            return ((double[])pixels).clone();
+        } else
+        {
+            return pixels;
+        }
+    }
+
+    private static void uint16ToBuffer(int val, byte[] buffer, int initpos)
+    {
+        buffer[initpos] = (byte)val;
+        buffer[initpos+1] = (byte)(val >>> 8);
+    }
+
+    private static void uint32ToBuffer(int val, byte[] buffer, int initpos)
+    {
+        buffer[initpos] = (byte)val;
+        buffer[initpos+1] = (byte)(val >>> 8);
+        buffer[initpos+2] = (byte)(val >>> 16);
+        buffer[initpos+3] = (byte)(val >>> 24);
+    }
+
+    /**
+     * Writes 4096 bytes of the extended x-major DEN header at the beginning of the channel.
+     */
+    public static void writeImageHeader(FileChannel out, DenDataType type, long[] dims)
+        throws IOException
+    {
+        byte[] buffer = new byte[4096];
+        uint16ToBuffer(0, buffer, 0);
+        uint16ToBuffer(dims.length, buffer, 2); // Dimensions
+        uint16ToBuffer(type.getSize(), buffer, 4); // Element size
+        uint16ToBuffer(0, buffer, 6); // X-major
+        uint16ToBuffer(type.ordinal(), buffer, 8); // Type code
+        for(int i = 0; i != dims.length; i++)
+        {
+            uint32ToBuffer((int)dims[i], buffer, 10 + 4 * i);
+        }
+        ByteBuffer header = ByteBuffer.wrap(buffer);
+        long pos = 0;
+        while(header.hasRemaining())
+        {
+            pos += out.write(header, pos);
         }
     }
 
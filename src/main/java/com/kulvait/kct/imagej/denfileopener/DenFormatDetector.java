@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Detects DEN and DAT files by their content
+ * The first 1024 bytes are read by a single read and the legacy or extended DEN header or
+ * the DAT first line is validated against the file size. Results are cached by the path,
+ * modification time and size, so that the files are not probed repeatedly.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DenFormatDetector
+{
+    public enum Format { DEN, DAT, UNKNOWN }
+
+    static final int PROBE_BYTES = 1024;
+    static final int CACHE_SIZE = 4096;
+
+    static class Probe
+    {
+        long lastModified;
+        long size;
+        Format format;
+    }
+
+    // Least recently used entries are evicted
+    static final LinkedHashMap<String, Probe> cache
+        = new LinkedHashMap<String, Probe>(64, 0.75f, true) {
+              protected boolean removeEldestEntry(Map.Entry<String, Probe> eldest)
+              {
+                  return size() > CACHE_SIZE;
+              }
+          };
+
+    public static Format detect(File f)
+    {
+        String key = f.getAbsolutePath();
+        long lastModified = f.lastModified();
+        long size = f.length();
+        synchronized(cache)
+        {
+            Probe e = cache.get(key);
+            if(e != null && e.lastModified == lastModified && e.size == size)
+            {
+                return e.format;
+            }
+        }
+        Probe e = new Probe();
+        e.lastModified = lastModified;
+        e.size = size;
+        e.format = probe(f, size);
+        synchronized(cache)
+        {
+            cache.put(key, e);
+        }
+        return e.format;
+    }
+
+    /**
+     * DAT by the content, or by the extension when the content is not recognized.
+     */
+    public static boolean isDAT(File f)
+    {
+        Format fmt = detect(f);
+        return fmt == Format.DAT
+            || (fmt == Format.UNKNOWN && f.getName().toLowerCase().endsWith(".dat"));
+    }
+
+    static Format probe(File f, long size)
+    {
+        if(!f.isFile() || size < 6)
+        {
+            return Format.UNKNOWN;
+        }
+        byte[] head = new byte[(int)Math.min(PROBE_BYTES, size)];
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try
+            {
+                raf.readFully(head);
+            } finally
+            {
+                raf.close();
+            }
+        } catch(IOException e)
+        {
+            return Format.UNKNOWN;
+        }
+        return sniff(head, size);
+    }
+
+    static int uint16(byte[] b, int pos) { return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8; }
+
+    static long uint32(byte[] b, int pos)
+    {
+        return (uint16(b, pos) & 0xffffL) | (long)uint16(b, pos + 2) << 16;
+    }
+
+    /**
+     * Format of the file of the given size starting with the bytes head.
+     */
+    public static Format sniff(byte[] head, long size)
+    {
+        if(isExtendedDEN(head, size) || isLegacyDEN(head, size))
+        {
+            return Format.DEN;
+        }
+        if(isDAT(head, size))
+        {
+            return Format.DAT;
+        }
+        return Format.UNKNOWN;
+    }
+
+    static boolean isExtendedDEN(byte[] b, long size)
+    {
+        if(b.length < 10 || uint16(b, 0) != 0 || size < 4096)
+        {
+            return false;
+        }
+        int dimcount = uint16(b, 2);
+        int elementSize = uint16(b, 4);
+        int xmajor = uint16(b, 6);
+        int type = uint16(b, 8);
+        if(dimcount == 0 || 10 + 4 * dimcount > b.length || xmajor > 1
+           || type >= DenDataType.values().length
+           || DenDataType.values()[type].getSize() != elementSize)
+        {
+            return false;
+        }
+        long count = 1;
+        for(int i = 0; i != dimcount; i++)
+        {
+            long d = uint32(b, 10 + 4 * i);
+            if(d != 0 && count > Long.MAX_VALUE / d)
+            {
+                return false;
+            }
+            count *= d;
+        }
+        return count <= (Long.MAX_VALUE - 4096) / elementSize
+            && 4096 + count * elementSize == size;
+    }
+
+    static boolean isLegacyDEN(byte[] b, long size)
+    {
+        long count = (long)uint16(b, 0) * uint16(b, 2) * uint16(b, 4);
+        if(count == 0)
+        {
+            return size == 6;
+        }
+        long payload = size - 6;
+        if(payload % count != 0)
+        {
+            return false;
+        }
+        long elementSize = payload / count;
+        // Element sizes accepted by DenFileInfo
+        return elementSize == 2 || elementSize == 4 || elementSize == 8;
+    }
+
+    static boolean isDAT(byte[] b, long size)
+    {
+        int end = 0;
+        while(end < b.length && b[end] != '\n')
+        {
+            end++;
+        }
+        if(end == b.length || b[0] != '_')
+        {
+            return false;
+        }
+        String line = new String(b, 0, end, StandardCharsets.ISO_8859_1);
+        if(!line.matches("_\\d+_[FDULI](_\\d+)+_\r?"))
+        {
+            return false;
+        }
+        String[] fld = line.split("_");
+        int dimcount = Integer.parseInt(fld[1]);
+        if(fld.length != 3 + dimcount + (line.endsWith("\r") ? 1 : 0))
+        {
+            return false;
+        }
+        long elementSize;
+        switch(fld[2])
+        {
+        case "D":
+            elementSize = 8;
+            break;
+        case "F":
+        case "L":
+            elementSize = 4;
+            break;
+        default:
+            elementSize = 2;
+        }
+        long count = 1;
+        for(int i = 0; i != dimcount; i++)
+        {
+            count *= Long.parseLong(fld[3 + i]);
+        }
+        return end + 1 + count * elementSize == size;
+    }
+}
@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Seek index of gzip compressed DEN
+ * The access points are the starts of the gzip members, a member can be decompressed
+ * independently of the others. The index is built by a single pass over the file and it is
+ * persisted next to it as file.den.gz.idx. Members written by DenGzipWriter carry their sizes in
+ * the extra field, so that the pass only hops over their headers, other members are inflated to
+ * find their ends.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class DenGzipIndex
+{
+    static final long MAGIC = 0x4b4354475a494458L; // KCTGZIDX
+    static final int VERSION = 1;
+    // Subfield of the extra field with the member size and the uncompressed size
+    static final int SUBFIELD_ID1 = 'K';
+    static final int SUBFIELD_ID2 = 'D';
+    static final int PROBE_HEADER = 1024;
+    static final int MAX_HEADER = 128 * 1024;
+
+    long gzSize;
+    long gzModified;
+    long uncompressedSize;
+    int count;
+    // Member k starts at compressedOffset[k] and decompresses to uncompressedOffset[k]
+    long[] compressedOffset;
+    long[] uncompressedOffset;
+
+    DenGzipIndex()
+    {
+        compressedOffset = new long[16];
+        uncompressedOffset = new long[16];
+    }
+
+    void add(long compressed, long uncompressed)
+    {
+        if(count == compressedOffset.length)
+        {
+            compressedOffset = Arrays.copyOf(compressedOffset, 2 * count);
+            uncompressedOffset = Arrays.copyOf(uncompressedOffset, 2 * count);
+        }
+        compressedOffset[count] = compressed;
+        uncompressedOffset[count] = uncompressed;
+        count++;
+    }
+
+    public static File indexFile(File gz) { return new File(gz.getPath() + ".idx"); }
+
+    /**
+     * Loads the index stored next to the file when it matches its size and modification time,
+     * otherwise builds it and tries to store it. A read-only directory only prevents the
+     * persistence.
+     */
+    public static DenGzipIndex open(File gz) throws IOException
+    {
+        DenGzipIndex index = load(gz);
+        if(index != null)
+        {
+            return index;
+        }
+        index = build(gz);
+        try
+        {
+            index.save(indexFile(gz));
+        } catch(IOException e)
+        {
+            System.out.printf("Can not store the index of %s: %s\n", gz.getPath(), e.toString());
+        }
+        return index;
+    }
+
+    static DenGzipIndex load(File gz)
+    {
+        File f = indexFile(gz);
+        if(!f.isFile())
+        {
+            return null;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if(in.readLong() != MAGIC || in.readInt() != VERSION)
+            {
+                return null;
+            }
+            DenGzipIndex index = new DenGzipIndex();
+            index.gzSize = in.readLong();
+            index.gzModified = in.readLong();
+            if(index.gzSize != gz.length() || index.gzModified != gz.lastModified())
+            {
+                return null;
+            }
+            index.uncompressedSize = in.readLong();
+            int count = in.readInt();
+            for(int k = 0; k != count; k++)
+            {
+                long compressed = in.readLong();
+                index.add(compressed, in.readLong());
+            }
+            return index;
+        } catch(IOException e)
+        {
+            System.out.printf("Ignoring the index %s: %s\n", f.getPath(), e.toString());
+            return null;
+        } finally
+        {
+            if(in != null)
+            {
+                try
+                {
+                    in.close();
+                } catch(IOException e)
+                {
+                }
+            }
+        }
+    }
+
+    void save(File f) throws IOException
+    {
+        DataOutputStream out
+            = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try
+        {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(gzSize);
+            out.writeLong(gzModified);
+            out.writeLong(uncompressedSize);
+            out.writeInt(count);
+            for(int k = 0; k != count; k++)
+            {
+                out.writeLong(compressedOffset[k]);
+                out.writeLong(uncompressedOffset[k]);
+            }
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Single pass over the members of the file.
+     */
+    public static DenGzipIndex build(File gz) throws IOException
+    {
+        DenGzipIndex index = new DenGzipIndex();
+        index.gzSize = gz.length();
+        index.gzModified = gz.lastModified();
+        FileChannel ch = FileChannel.open(gz.toPath(), StandardOpenOption.READ);
+        try
+        {
+            long size = ch.size();
+            long pos = 0;
+            long uncompressed = 0;
+            ByteBuffer head = ByteBuffer.allocate(MAX_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            // Trailing zeros or garbage after the last member are ignored as by gzip
+            while(pos + 18 <= size && readHeader(ch, pos, head, PROBE_HEADER))
+            {
+                index.add(pos, uncompressed);
+                int headerLength = headerLength(head);
+                if(headerLength > head.limit())
+                {
+                    // Long file name, comment or extra field
+                    readHeader(ch, pos, head, MAX_HEADER);
+                    headerLength = headerLength(head);
+                }
+                if(headerLength > head.limit())
+                {
+                    throw new IOException(String.format("Gzip header at %d is too long", pos));
+                }
+                long[] sizes = extraSizes(head);
+                if(sizes != null)
+                {
+                    pos += sizes[0];
+                    uncompressed += sizes[1];
+                } else
+                {
+                    long[] member = inflateMember(ch, pos + headerLength);
+                    pos = member[0] + 8;
+                    uncompressed += member[1];
+                }
+            }
+            if(index.count == 0)
+            {
+                throw new IOException(String.format("File %s is not gzip!", gz.getName()));
+            }
+            index.uncompressedSize = uncompressed;
+        } finally
+        {
+            ch.close();
+        }
+        return index;
+    }
+
+    static boolean readHeader(FileChannel ch, long pos, ByteBuffer head, int length)
+        throws IOException
+    {
+        ((Buffer)head).clear();
+        ((Buffer)head).limit(length);
+        while(head.hasRemaining())
+        {
+            if(ch.read(head, pos + head.position()) < 0)
+            {
+                break;
+            }
+        }
+        ((Buffer)head).flip();
+        return head.remaining() >= 10 && (head.get(0) & 0xff) == 0x1f
+            && (head.get(1) & 0xff) == 0x8b && head.get(2) == 8;
+    }
+
+    /**
+     * Length of the member header, see RFC 1952, it exceeds the limit of head when the header
+     * was not read completely.
+     */
+    static int headerLength(ByteBuffer head)
+    {
+        int flags = head.get(3) & 0xff;
+        int p = 10;
+        if((flags & 4) != 0)
+        {
+            p += 2 + (head.getShort(10) & 0xffff);
+        }
+        for(int bit = 8; bit <= 16; bit *= 2)
+        {
+            if((flags & bit) != 0)
+            {
+                while(p < head.limit() && head.get(p) != 0)
+                {
+                    p++;
+                }
+                p++;
+            }
+        }
+        if((flags & 2) != 0)
+        {
+            p += 2;
+        }
+        return p;
+    }
+
+    /**
+     * Member size and uncompressed size from the subfield written by DenGzipWriter or null.
+     */
+    static long[] extraSizes(ByteBuffer head)
+    {
+        if((head.get(3) & 4) == 0)
+        {
+            return null;
+        }
+        int end = Math.min(head.limit(), 12 + (head.getShort(10) & 0xffff));
+        int p = 12;
+        while(p + 4 <= end)
+        {
+            int len = head.getShort(p + 2) & 0xffff;
+            if(head.get(p) == SUBFIELD_ID1 && head.get(p + 1) == SUBFIELD_ID2 && len == 8
+               && p + 12 <= end)
+            {
+                return new long[] { head.getInt(p + 4) & 0xffffffffL,
+                                    head.getInt(p + 8) & 0xffffffffL };
+            }
+            p += 4 + len;
+        }
+        return null;
+    }
+
+    /**
+     * Inflates the deflate stream starting at pos and returns the position of its end and the
+     * number of uncompressed bytes.
+     */
+    static long[] inflateMember(FileChannel ch, long pos) throws IOException
+    {
+        Inflater inflater = new Inflater(true);
+        ByteBuffer in = ByteBuffer.allocate(256 * 1024);
+        byte[] out = new byte[1024 * 1024];
+        long p = pos;
+        long produced = 0;
+        try
+        {
+            while(!inflater.finished())
+            {
+                if(inflater.needsInput())
+                {
+                    ((Buffer)in).clear();
+                    int n = ch.read(in, p);
+                    if(n <= 0)
+                    {
+                        throw new EOFException("Unexpected end of gzip member");
+                    }
+                    p += n;
+                    inflater.setInput(in.array(), 0, n);
+                }
+                produced += inflater.inflate(out);
+                if(inflater.needsDictionary())
+                {
+                    throw new IOException("Gzip member needs dictionary");
+                }
+            }
+            return new long[] { p - inflater.getRemaining(), produced };
+        } catch(DataFormatException e)
+        {
+            throw new IOException(e);
+        } finally
+        {
+            inflater.end();
+        }
+    }
+
+    public int getMemberCount() { return count; }
+
+    public long getUncompressedSize() { return uncompressedSize; }
+
+    /**
+     * Member containing the uncompressed position.
+     */
+    int member(long position)
+    {
+        int k = Arrays.binarySearch(uncompressedOffset, 0, count, position);
+        if(k < 0)
+        {
+            k = -k - 2;
+        }
+        // Skip empty members
+        while(k + 1 < count && uncompressedOffset[k + 1] == position)
+        {
+            k++;
+        }
+        return Math.max(0, k);
+    }
+
+    long memberEnd(int k) { return k + 1 < count ? uncompressedOffset[k + 1] : uncompressedSize; }
+
+    long compressedEnd(int k) { return k + 1 < count ? compressedOffset[k + 1] : gzSize; }
+}
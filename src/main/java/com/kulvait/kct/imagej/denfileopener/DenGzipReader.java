@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Random access to the uncompressed content of gzip compressed DEN
+ * Only the members of DenGzipIndex covering the requested range are decompressed, members of
+ * one request are inflated concurrently and the recently used ones are cached. A member too large
+ * to be cached, which is the case of the files compressed by plain gzip, is read through a
+ * cursor that continues forward and restarts from the member start when seeking backward.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.Prefs;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+public class DenGzipReader
+{
+    // Larger members are read through the cursor
+    static final long MAX_CACHED_MEMBER = 16L * 1024L * 1024L;
+    static final long CACHE_BYTES = 128L * 1024L * 1024L;
+
+    File f;
+    DenGzipIndex index;
+    FileChannel channel;
+    ExecutorService pool;
+    long cachedBytes;
+    final LinkedHashMap<Integer, byte[]> cache;
+    // Cursor of the large member
+    GZIPInputStream cursor;
+    int cursorMember;
+    long cursorPosition;
+
+    public DenGzipReader(File f) throws IOException
+    {
+        this.f = f;
+        index = DenGzipIndex.open(f);
+        channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        cache = new LinkedHashMap<Integer, byte[]>(64, 0.75f, true);
+        cursorMember = -1;
+    }
+
+    public DenGzipIndex getIndex() { return index; }
+
+    public long size() { return index.getUncompressedSize(); }
+
+    /**
+     * Reads len uncompressed bytes starting at position into dst.
+     */
+    public void read(long position, byte[] dst, int off, int len) throws IOException
+    {
+        if(position < 0 || position + len > size())
+        {
+            throw new EOFException(String.format("Range %d+%d is outside of %s of %d bytes",
+                                                 position, len, f.getName(), size()));
+        }
+        long end = position + len;
+        int first = index.member(position);
+        int last = len == 0 ? first : index.member(end - 1);
+        Map<Integer, byte[]> members = fetchMembers(first, last);
+        for(int k = first; k <= last; k++)
+        {
+            long start = index.uncompressedOffset[k];
+            long from = Math.max(position, start);
+            long to = Math.min(end, index.memberEnd(k));
+            if(to <= from)
+            {
+                continue;
+            }
+            int n = (int)(to - from);
+            byte[] m = members.get(k);
+            if(m != null)
+            {
+                System.arraycopy(m, (int)(from - start), dst, off + (int)(from - position), n);
+            } else
+            {
+                readCursor(k, from - start, dst, off + (int)(from - position), n);
+            }
+        }
+    }
+
+    /**
+     * Fills the remaining bytes of dst, its position is not changed.
+     */
+    public void read(long position, ByteBuffer dst) throws IOException
+    {
+        if(dst.hasArray())
+        {
+            read(position, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        } else
+        {
+            byte[] b = new byte[dst.remaining()];
+            read(position, b, 0, b.length);
+            dst.duplicate().put(b);
+        }
+    }
+
+    /**
+     * Cacheable members of the range, the missing ones are inflated concurrently.
+     */
+    Map<Integer, byte[]> fetchMembers(int first, int last) throws IOException
+    {
+        Map<Integer, byte[]> members = new HashMap<Integer, byte[]>();
+        List<Integer> missing = new ArrayList<Integer>();
+        synchronized(cache)
+        {
+            for(int k = first; k <= last; k++)
+            {
+                if(memberSize(k) > MAX_CACHED_MEMBER)
+                {
+                    continue;
+                }
+                byte[] m = cache.get(k);
+                if(m != null)
+                {
+                    members.put(k, m);
+                } else
+                {
+                    missing.add(k);
+                }
+            }
+        }
+        DenIoMetrics.GZIP_CACHE_HITS.add(members.size());
+        DenIoMetrics.GZIP_CACHE_MISSES.add(missing.size());
+        if(missing.size() == 1)
+        {
+            members.put(missing.get(0), inflate(missing.get(0)));
+        } else if(missing.size() > 1)
+        {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for(final Integer k : missing)
+            {
+                results.add(pool().submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException { return inflate(k); }
+                }));
+            }
+            try
+            {
+                for(int i = 0; i != missing.size(); i++)
+                {
+                    members.put(missing.get(i), results.get(i).get());
+                }
+            } catch(InterruptedException e)
+            {
+                throw new IOException(e);
+            } catch(ExecutionException e)
+            {
+                if(e.getCause() instanceof IOException)
+                {
+                    throw(IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        synchronized(cache)
+        {
+            for(Integer k : missing)
+            {
+                byte[] m = members.get(k);
+                if(cache.put(k, m) == null)
+                {
+                    cachedBytes += m.length;
+                }
+            }
+            Iterator<Map.Entry<Integer, byte[]>> it = cache.entrySet().iterator();
+            while(cachedBytes > CACHE_BYTES && it.hasNext())
+            {
+                cachedBytes -= it.next().getValue().length;
+                it.remove();
+            }
+        }
+        return members;
+    }
+
+    synchronized ExecutorService pool()
+    {
+        if(pool == null)
+        {
+            ThreadFactory daemons = new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "DEN gzip " + f.getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+            pool = Executors.newFixedThreadPool(Math.max(1, Prefs.getThreads()), daemons);
+        }
+        return pool;
+    }
+
+    long memberSize(int k) { return index.memberEnd(k) - index.uncompressedOffset[k]; }
+
+    InputStream memberStream(int k) throws IOException
+    {
+        return new GZIPInputStream(
+            new ChannelInputStream(channel, index.compressedOffset[k], index.compressedEnd(k)),
+            64 * 1024);
+    }
+
+    byte[] inflate(int k) throws IOException
+    {
+        byte[] m = new byte[(int)memberSize(k)];
+        InputStream in = memberStream(k);
+        try
+        {
+            readFully(in, m, 0, m.length);
+        } finally
+        {
+            in.close();
+        }
+        return m;
+    }
+
+    synchronized void readCursor(int k, long offset, byte[] dst, int off, int len)
+        throws IOException
+    {
+        if(cursor == null || cursorMember != k || cursorPosition > offset)
+        {
+            if(cursor != null)
+            {
+                cursor.close();
+            }
+            cursor = (GZIPInputStream)memberStream(k);
+            cursorMember = k;
+            cursorPosition = 0;
+        }
+        while(cursorPosition < offset)
+        {
+            long n = cursor.skip(offset - cursorPosition);
+            if(n <= 0)
+            {
+                throw new EOFException("Unexpected end of gzip member");
+            }
+            cursorPosition += n;
+        }
+        readFully(cursor, dst, off, len);
+        cursorPosition += len;
+    }
+
+    static void readFully(InputStream in, byte[] b, int off, int len) throws IOException
+    {
+        while(len > 0)
+        {
+            int n = in.read(b, off, len);
+            if(n < 0)
+            {
+                throw new EOFException("Unexpected end of gzip member");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if(pool != null)
+        {
+            pool.shutdownNow();
+            pool = null;
+        }
+        if(cursor != null)
+        {
+            cursor.close();
+            cursor = null;
+        }
+        channel.close();
+    }
+
+    /**
+     * Compressed range of the file read by positional reads, so that members can be read
+     * concurrently from one channel.
+     */
+    static class ChannelInputStream extends InputStream
+    {
+        FileChannel channel;
+        long position;
+        long end;
+
+        ChannelInputStream(FileChannel channel, long position, long end)
+        {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if(position >= end)
+            {
+                return -1;
+            }
+            len = (int)Math.min(len, end - position);
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if(n > 0)
+            {
+                position += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Virtual stack of gzip compressed DEN
+ * The slices are decompressed on demand by DenGzipReader, only the gzip members covering the
+ * slice are inflated. The stack can not be edited or followed.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class DenGzipVirtualStack extends DenVirtualStack
+{
+    DenGzipReader reader;
+
+    public DenGzipVirtualStack(File f) throws IOException { this(f, new DenGzipReader(f)); }
+
+    DenGzipVirtualStack(File f, DenGzipReader reader) throws IOException
+    {
+        super(f, headerInfo(reader));
+        this.reader = reader;
+    }
+
+    /**
+     * Information from the decompressed header, the reader is closed when it is not valid DEN.
+     */
+    static DenFileInfo headerInfo(DenGzipReader reader) throws IOException
+    {
+        byte[] head = new byte[(int)Math.min(1024L, reader.size())];
+        reader.read(0, head, 0, head.length);
+        DenFileInfo inf = new DenFileInfo(ByteBuffer.wrap(head), reader.size());
+        if(!inf.isValidDEN())
+        {
+            reader.close();
+        }
+        return inf;
+    }
+
+    public DenFileInfo getInfo() { return inf; }
+
+    ByteBuffer sliceBuffer(int n) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate((int)sliceBytes);
+        reader.read(inf.getDataByteOffset() + (n - 1) * sliceBytes, buf);
+        return buf.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    boolean isPlainDEN() { return false; }
+
+    public synchronized void setEditable() throws IOException
+    {
+        throw new IOException(
+            String.format("Compressed %s can not be edited in place.", f.getName()));
+    }
+
+    public synchronized void startFollowing(ImagePlus imp, long periodMillis) {}
+
+    public void close() throws IOException { reader.close(); }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Compresses DEN to .den.gz of independent gzip members
+ * Blocks of the file are deflated concurrently, each block is one gzip member, so that the
+ * output is a valid gzip readable by gunzip and the members are the access points of
+ * DenGzipIndex. The index is stored next to the output.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+import ij.plugin.PlugIn;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class DenGzipWriter implements PlugIn
+{
+    static final int HEADER_LENGTH = 24;
+
+    private int level = (int)Prefs.get("options.dengziplevel", 6);
+    private int blockSize = (int)Prefs.get("options.dengzipblock", 1024 * 1024);
+    private int threads = Prefs.getThreads();
+
+    public void run(String arg)
+    {
+        OpenDialog od = new OpenDialog("Compress DEN ...");
+        if(od.getFileName() == null)
+            return;
+        File in = new File(od.getDirectory() + od.getFileName());
+        GenericDialog gd = new GenericDialog("Compress " + in.getName());
+        gd.addNumericField("Compression level (1-9)", level, 0);
+        gd.addNumericField("Block size", blockSize / 1024, 0, 6, "KiB");
+        gd.showDialog();
+        if(gd.wasCanceled())
+            return;
+        setLevel((int)gd.getNextNumber());
+        setBlockSize((int)gd.getNextNumber() * 1024);
+        Prefs.set("options.dengziplevel", level);
+        Prefs.set("options.dengzipblock", blockSize);
+        SaveDialog sd = new SaveDialog("Save compressed DEN ...", in.getName(), ".gz");
+        if(sd.getFileName() == null)
+            return;
+        File out = new File(sd.getDirectory() + sd.getFileName());
+        try
+        {
+            long start = System.nanoTime();
+            compress(in, out);
+            double s = (System.nanoTime() - start) * 1e-9;
+            double mb = in.length() / (1024.0 * 1024.0);
+            IJ.showStatus(String.format("%.1f MB in %.2f s (%.1f MB/s), ratio %.2f", mb, s,
+                                        mb / s, (double)in.length() / out.length()));
+        } catch(IOException e)
+        {
+            IJ.error("An error occured writing the file.\n \n" + e);
+        }
+    }
+
+    /**
+     * Deflate level 1 to 9.
+     */
+    public void setLevel(int level) { this.level = Math.max(1, Math.min(9, level)); }
+
+    /**
+     * Uncompressed size of one member, the granularity of the random access.
+     */
+    public void setBlockSize(int blockSize) { this.blockSize = Math.max(4096, blockSize); }
+
+    public void setThreads(int threads) { this.threads = Math.max(1, threads); }
+
+    /**
+     * Upper bound of the heap used by the members in flight, each holds the uncompressed block,
+     * its compressed copy of about the same size and the deflate buffer.
+     */
+    public long getBufferMemory() { return 2L * threads * (2L * blockSize + 64L * 1024L); }
+
+    /**
+     * Compresses the DEN in to the gzip out and stores its index, returns the index.
+     */
+    public DenGzipIndex compress(File in, File out) throws IOException
+    {
+        DenFileInfo inf = new DenFileInfo(in);
+        if(!inf.isValidDEN())
+        {
+            throw new IOException(String.format("File %s is not valid DEN!", in.getName()));
+        }
+        if(out.getCanonicalFile().equals(in.getCanonicalFile()))
+        {
+            throw new IOException(String.format("Output %s is the input!", out.getName()));
+        }
+        final FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        DenGzipIndex index = new DenGzipIndex();
+        try
+        {
+            raf.setLength(0);
+            FileChannel output = raf.getChannel();
+            long size = input.size();
+            final int blocks = (int)Math.max(1L, (size + blockSize - 1) / blockSize);
+            // Members in flight bound the memory to about 2 * threads blocks
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+            long position = 0;
+            int next = 0;
+            for(int k = 0; k != blocks; k++)
+            {
+                while(next < blocks && pending.size() < 2 * threads)
+                {
+                    final long from = (long)next * blockSize;
+                    final int length = (int)Math.min(blockSize, size - from);
+                    pending.add(pool.submit(new Callable<byte[]>() {
+                        public byte[] call() throws IOException
+                        {
+                            return member(input, from, length);
+                        }
+                    }));
+                    next++;
+                }
+                byte[] m = pending.poll().get();
+                index.add(position, (long)k * blockSize);
+                ByteBuffer b = ByteBuffer.wrap(m);
+                while(b.hasRemaining())
+                {
+                    position += output.write(b, position);
+                }
+                IJ.showProgress(k + 1, blocks);
+            }
+            index.uncompressedSize = size;
+        } catch(InterruptedException e)
+        {
+            throw new IOException(e);
+        } catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+            {
+                throw(IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally
+        {
+            pool.shutdownNow();
+            raf.close();
+            input.close();
+        }
+        index.gzSize = out.length();
+        index.gzModified = out.lastModified();
+        try
+        {
+            index.save(DenGzipIndex.indexFile(out));
+        } catch(IOException e)
+        {
+            System.out.printf("Can not store the index of %s: %s\n", out.getPath(), e.toString());
+        }
+        return index;
+    }
+
+    /**
+     * Gzip member of the block, the extra subfield KD holds the size of the member and the size
+     * of the block as uint32.
+     */
+    byte[] member(FileChannel input, long from, int length) throws IOException
+    {
+        ByteBuffer block = ByteBuffer.allocate(length);
+        while(block.hasRemaining())
+        {
+            if(input.read(block, from + block.position()) < 0)
+            {
+                throw new IOException(String.format("Unexpected end of input at %d", from));
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(block.array(), 0, length);
+        ByteArrayOutputStream data = new ByteArrayOutputStream(length / 2 + 64);
+        data.write(new byte[HEADER_LENGTH], 0, HEADER_LENGTH);
+        Deflater deflater = new Deflater(level, true);
+        try
+        {
+            deflater.setInput(block.array(), 0, length);
+            deflater.finish();
+            byte[] buf = new byte[64 * 1024];
+            while(!deflater.finished())
+            {
+                int n = deflater.deflate(buf);
+                data.write(buf, 0, n);
+            }
+        } finally
+        {
+            deflater.end();
+        }
+        data.write(new byte[8], 0, 8);
+        byte[] m = data.toByteArray();
+        ByteBuffer b = ByteBuffer.wrap(m).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte)0x1f).put((byte)0x8b).put((byte)8).put((byte)4); // FEXTRA
+        b.putInt(0).put((byte)0).put((byte)255); // MTIME, XFL, OS unknown
+        b.putShort((short)12);
+        b.put((byte)DenGzipIndex.SUBFIELD_ID1).put((byte)DenGzipIndex.SUBFIELD_ID2);
+        b.putShort((short)8).putInt(m.length).putInt(length);
+        ((Buffer)b).position(m.length - 8);
+        b.putInt((int)crc.getValue()).putInt(length);
+        return m;
+    }
+}
@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Access method of the slices stored in a file
+ * The slices are either memory mapped, read by large positional reads into pooled direct buffers
+ * or read by an asynchronous channel in chunks with several requests outstanding. Mapping is the
+ * fastest on the local disks, on the network file systems with a small readahead the page faults
+ * of the mapped slices are served one by one and the reads perform better. The method is given
+ * by the option options.denbackend, which is mmap, pread, async or auto. With auto the local file
+ * systems are mapped and on the network file systems the methods are timed on a few samples of
+ * the first file opened from the mount, see select.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.Prefs;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public abstract class DenIoBackend
+{
+    public static final String MMAP = "mmap";
+    public static final String PREAD = "pread";
+    public static final String ASYNC = "async";
+    public static final String AUTO = "auto";
+
+    // File systems whose page faults are served over the network
+    static final String[] NETWORK_TYPES = { "nfs", "nfs4", "cifs", "smbfs", "smb2", "lustre",
+                                            "gpfs", "beegfs", "ceph", "glusterfs", "9p", "panfs",
+                                            "afs", "fuse" };
+    // Smaller files are not probed, the probe would read most of them
+    static final long PROBE_MIN_FILE_BYTES = 64L * 1024L * 1024L;
+    // Backend chosen for the file store by the probe
+    static final HashMap<String, String> probed = new HashMap<String, String>();
+
+    final FileChannel channel;
+
+    DenIoBackend(FileChannel channel) { this.channel = channel; }
+
+    public abstract String getName();
+
+    /**
+     * True when read maps the file, the callers keeping their own mappings use them instead.
+     */
+    public boolean isMapped() { return false; }
+
+    /**
+     * Little endian buffer with the bytes [pos, pos + bytes) of the file between its position and
+     * limit, the buffer is passed to release when it is decoded.
+     */
+    public abstract ByteBuffer read(long pos, int bytes) throws IOException;
+
+    public void release(ByteBuffer buf) {}
+
+    public void close() throws IOException {}
+
+    /**
+     * Reader of the file open as channel, the access method is given by options.denbackend and
+     * with auto chosen for the file and the slices of sliceBytes.
+     */
+    public static DenIoBackend open(File f, FileChannel channel, long sliceBytes)
+        throws IOException
+    {
+        String name = Prefs.get("options.denbackend", AUTO);
+        if(name.equals(AUTO))
+        {
+            name = select(f, channel, sliceBytes);
+        }
+        return open(name, f, channel);
+    }
+
+    static DenIoBackend open(String name, File f, FileChannel channel) throws IOException
+    {
+        if(name.equals(PREAD))
+        {
+            return new Positional(channel);
+        } else if(name.equals(ASYNC))
+        {
+            return new Async(f, channel);
+        } else if(name.equals(MMAP))
+        {
+            return new Mapped(channel);
+        }
+        throw new IOException(String.format("Unknown DEN I/O backend %s!", name));
+    }
+
+    /**
+     * Local file systems are mapped. On the network file systems the files smaller than
+     * PROBE_MIN_FILE_BYTES are read by pread, otherwise the first file of the store is probed by
+     * reading distinct samples of the slice size by each method and the fastest is kept for the
+     * store.
+     */
+    static String select(File f, FileChannel channel, long sliceBytes)
+    {
+        FileStore store;
+        try
+        {
+            store = Files.getFileStore(f.toPath());
+        } catch(IOException e)
+        {
+            return MMAP;
+        }
+        if(!isNetwork(store.type()))
+        {
+            return MMAP;
+        }
+        String key = store.toString() + " " + store.type();
+        synchronized(probed)
+        {
+            String name = probed.get(key);
+            if(name != null)
+            {
+                return name;
+            }
+            try
+            {
+                long size = channel.size();
+                if(size < PROBE_MIN_FILE_BYTES)
+                {
+                    return PREAD;
+                }
+                name = probe(f, channel, sliceBytes, size);
+            } catch(IOException e)
+            {
+                System.out.printf("Probe of %s failed: %s\n", f.getPath(), e.toString());
+                return PREAD;
+            }
+            probed.put(key, name);
+            System.out.printf("DEN I/O backend %s selected for %s (%s)\n", name, store.toString(),
+                              store.type());
+            return name;
+        }
+    }
+
+    static boolean isNetwork(String type)
+    {
+        for(String t : NETWORK_TYPES)
+        {
+            if(type.equals(t) || type.startsWith(t + "."))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Each method reads its own samples so that none of them is served from the page cache
+     * filled by the other.
+     */
+    static String probe(File f, FileChannel channel, long sliceBytes, long size) throws IOException
+    {
+        String[] names = { MMAP, PREAD, ASYNC };
+        int bytes = (int)Math.max(1024L * 1024L, Math.min(sliceBytes, 16L * 1024L * 1024L));
+        int samples = 2;
+        long stride = size / (names.length * samples + 1);
+        bytes = (int)Math.min(bytes, stride);
+        String best = MMAP;
+        long bestTime = Long.MAX_VALUE;
+        for(int k = 0; k != names.length; k++)
+        {
+            DenIoBackend b = open(names[k], f, channel);
+            try
+            {
+                long start = System.nanoTime();
+                for(int s = 0; s != samples; s++)
+                {
+                    long pos = stride * (1 + k * samples + s);
+                    ByteBuffer buf = b.read(pos, bytes);
+                    // Touches every page of the mapping
+                    for(int i = ((Buffer)buf).position(); i < ((Buffer)buf).limit(); i += 4096)
+                    {
+                        buf.get(i);
+                    }
+                    b.release(buf);
+                }
+                long time = System.nanoTime() - start;
+                if(time < bestTime)
+                {
+                    bestTime = time;
+                    best = names[k];
+                }
+            } finally
+            {
+                b.close();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Reads from pos until buf is full, throws EOFException at the end of the file.
+     */
+    public static void readFully(FileChannel channel, ByteBuffer buf, long pos)
+        throws IOException
+    {
+        while(buf.hasRemaining())
+        {
+            int read = channel.read(buf, pos);
+            if(read < 0)
+            {
+                throw new EOFException(String.format("Unexpected end of file at %d.", pos));
+            }
+            pos += read;
+        }
+    }
+
+    static class Mapped extends DenIoBackend
+    {
+        Mapped(FileChannel channel) { super(channel); }
+
+        public String getName() { return MMAP; }
+
+        public boolean isMapped() { return true; }
+
+        public ByteBuffer read(long pos, int bytes) throws IOException
+        {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, pos, bytes);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            return map;
+        }
+    }
+
+    /**
+     * One positional read per slice into a direct buffer of the pool.
+     */
+    static class Positional extends DenIoBackend
+    {
+        Positional(FileChannel channel) { super(channel); }
+
+        public String getName() { return PREAD; }
+
+        public ByteBuffer read(long pos, int bytes) throws IOException
+        {
+            ByteBuffer buf = BufferPool.acquire(bytes);
+            try
+            {
+                readFully(channel, buf, pos);
+            } catch(IOException e)
+            {
+                BufferPool.release(buf);
+                throw e;
+            }
+            ((Buffer)buf).flip();
+            return buf;
+        }
+
+        public void release(ByteBuffer buf) { BufferPool.release(buf); }
+    }
+
+    /**
+     * The slice is split into chunks read concurrently with up to options.denasyncrequests
+     * requests outstanding, default 8, so that the latency of the network is overlapped.
+     */
+    static class Async extends DenIoBackend
+    {
+        static final int MIN_CHUNK = 256 * 1024;
+
+        final AsynchronousFileChannel async;
+        final int outstanding;
+
+        Async(File f, FileChannel channel) throws IOException
+        {
+            super(channel);
+            async = AsynchronousFileChannel.open(f.toPath(), StandardOpenOption.READ);
+            outstanding = Math.max(1, (int)Prefs.get("options.denasyncrequests", 8));
+        }
+
+        public String getName() { return ASYNC; }
+
+        public ByteBuffer read(long pos, int bytes) throws IOException
+        {
+            ByteBuffer buf = BufferPool.acquire(bytes);
+            try
+            {
+                int chunk = Math.max(MIN_CHUNK, (bytes + outstanding - 1) / outstanding);
+                ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+                for(int offset = 0; offset < bytes; offset += chunk)
+                {
+                    ByteBuffer c = buf.duplicate();
+                    ((Buffer)c).position(offset);
+                    ((Buffer)c).limit(Math.min(bytes, offset + chunk));
+                    chunks.add(c.slice());
+                }
+                readChunks(chunks, pos, chunk);
+            } catch(IOException e)
+            {
+                BufferPool.release(buf);
+                throw e;
+            }
+            ((Buffer)buf).limit(bytes);
+            ((Buffer)buf).position(0);
+            return buf;
+        }
+
+        /**
+         * Issues the reads of the chunks, the short reads are reissued for the rest of the chunk.
+         */
+        void readChunks(List<ByteBuffer> chunks, long pos, int chunk) throws IOException
+        {
+            List<Future<Integer>> pending = new ArrayList<Future<Integer>>();
+            for(int k = 0; k != chunks.size(); k++)
+            {
+                pending.add(async.read(chunks.get(k), pos + (long)k * chunk));
+            }
+            try
+            {
+                for(int k = 0; k != chunks.size(); k++)
+                {
+                    ByteBuffer c = chunks.get(k);
+                    long chunkPos = pos + (long)k * chunk;
+                    int read = pending.get(k).get();
+                    while(read >= 0 && c.hasRemaining())
+                    {
+                        read = async.read(c, chunkPos + ((Buffer)c).position()).get();
+                    }
+                    if(read < 0 && c.hasRemaining())
+                    {
+                        throw new EOFException(
+                            String.format("Unexpected end of file at %d.", chunkPos));
+                    }
+                }
+            } catch(InterruptedException e)
+            {
+                throw new IOException(e);
+            } catch(ExecutionException e)
+            {
+                throw new IOException(e.getCause());
+            } finally
+            {
+                // The buffer returns to the pool only when no read writes into it
+                for(Future<Integer> p : pending)
+                {
+                    await(p);
+                }
+            }
+        }
+
+        static void await(Future<Integer> p)
+        {
+            boolean interrupted = false;
+            while(true)
+            {
+                try
+                {
+                    p.get();
+                    break;
+                } catch(InterruptedException e)
+                {
+                    interrupted = true;
+                } catch(ExecutionException e)
+                {
+                    break;
+                }
+            }
+            if(interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void release(ByteBuffer buf) { BufferPool.release(buf); }
+
+        public void close() throws IOException { async.close(); }
+    }
+
+    /**
+     * Direct buffers reused by the reads, at most two per thread of Prefs.getThreads() are kept.
+     */
+    static class BufferPool
+    {
+        static final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+        static ByteBuffer acquire(int bytes)
+        {
+            synchronized(free)
+            {
+                ByteBuffer best = null;
+                for(ByteBuffer b : free)
+                {
+                    if(b.capacity() >= bytes && (best == null || b.capacity() < best.capacity()))
+                    {
+                        best = b;
+                    }
+                }
+                if(best != null)
+                {
+                    remove(best);
+                    ((Buffer)best).clear();
+                    ((Buffer)best).limit(bytes);
+                    return best;
+                }
+            }
+            // Rounded to 64kB so that slices of similar sizes share the buffers
+            int capacity = (int)Math.min(Integer.MAX_VALUE, ((bytes + 65535L) >> 16) << 16);
+            ByteBuffer b = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            ((Buffer)b).limit(bytes);
+            return b;
+        }
+
+        static void release(ByteBuffer buf)
+        {
+            synchronized(free)
+            {
+                free.addLast(buf);
+                if(free.size() > 2 * Prefs.getThreads())
+                {
+                    // Drops the smallest buffer
+                    ByteBuffer smallest = free.peekFirst();
+                    for(ByteBuffer b : free)
+                    {
+                        if(b.capacity() < smallest.capacity())
+                        {
+                            smallest = b;
+                        }
+                    }
+                    remove(smallest);
+                }
+            }
+        }
+
+        /**
+         * ByteBuffer.equals compares the content, the buffers are removed by identity.
+         */
+        static void remove(ByteBuffer buf)
+        {
+            for(Iterator<ByteBuffer> it = free.iterator(); it.hasNext();)
+            {
+                if(it.next() == buf)
+                {
+                    it.remove();
+                    return;
+                }
+            }
+        }
+    }
+}
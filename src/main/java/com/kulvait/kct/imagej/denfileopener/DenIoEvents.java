@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Flight Recorder events of the DEN I/O when available
+ * A recording with the events com.kulvait.kct.den.* enabled shows the file, slice, bytes, type
+ * and orientation of each slice read, mapping and slice write, for example
+ * java -XX:StartFlightRecording=filename=den.jfr,settings=profile -jar ij.jar
+ * When Flight Recorder is missing or the events are not enabled, begin returns null and end
+ * does nothing.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import java.io.File;
+
+public class DenIoEvents
+{
+    public static final int SLICE_READ = 0;
+    public static final int MAPPING = 1;
+    public static final int SLICE_WRITE = 2;
+
+    static final boolean AVAILABLE = available();
+
+    static boolean available()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch(ClassNotFoundException e)
+        {
+            return false;
+        } catch(LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Starts the event of the kind SLICE_READ, MAPPING or SLICE_WRITE, null when not recorded.
+     */
+    public static Object begin(int kind) { return AVAILABLE ? DenJfrEvents.begin(kind) : null; }
+
+    /**
+     * Ends and commits the event returned by begin, slice is zero based.
+     */
+    public static void end(Object event,
+                           File f,
+                           int slice,
+                           long bytes,
+                           DenDataType type,
+                           boolean xmajor)
+    {
+        if(event != null)
+        {
+            DenJfrEvents.end(event, f, slice, bytes, type, xmajor);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Counters and latency histograms of the DEN and DAT I/O
+ * The metrics are process wide and always collected, recording is an uncontended add to a
+ * LongAdder and a bucket increment, which is negligible compared to the slice I/O. They are read
+ * by snapshot, for example by the DEN I/O statistics window.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DenIoMetrics
+{
+    public static final Latency HEADER_PARSE = new Latency("Header parse");
+    public static final Latency MAPPING = new Latency("Mapping");
+    public static final Latency SLICE_DECODE = new Latency("Slice decode");
+    public static final Latency SAVE = new Latency("Save");
+    public static final Counter FRAME_CACHE_HITS = new Counter("Frame cache hits");
+    public static final Counter FRAME_CACHE_MISSES = new Counter("Frame cache misses");
+    public static final Counter GZIP_CACHE_HITS = new Counter("Gzip member cache hits");
+    public static final Counter GZIP_CACHE_MISSES = new Counter("Gzip member cache misses");
+    public static final Counter DISK_CACHE_HITS = new Counter("Disk cache hits");
+    public static final Counter DISK_CACHE_MISSES = new Counter("Disk cache misses");
+    public static final Counter BYTES_READ = new Counter("Bytes read");
+    public static final Counter BYTES_WRITTEN = new Counter("Bytes written");
+    public static final Counter BYTES_MAPPED = new Counter("Bytes mapped");
+
+    static final Latency[] LATENCIES = { HEADER_PARSE, MAPPING, SLICE_DECODE, SAVE };
+    static final Counter[] COUNTERS
+        = { FRAME_CACHE_HITS,  FRAME_CACHE_MISSES, GZIP_CACHE_HITS, GZIP_CACHE_MISSES,
+            DISK_CACHE_HITS,   DISK_CACHE_MISSES,  BYTES_READ,      BYTES_WRITTEN,
+            BYTES_MAPPED };
+
+    public static final String HEADINGS = "Metric\tCount\tMean ms\tp50 ms\tp99 ms\tMax ms";
+
+    // Four sub-buckets per power of two give the resolution of 25 % up to 2^63 ns
+    static final int BUCKETS = 248;
+
+    public static class Counter
+    {
+        final String name;
+        final LongAdder value = new LongAdder();
+
+        Counter(String name) { this.name = name; }
+
+        public void add(long x) { value.add(x); }
+
+        public void increment() { value.increment(); }
+
+        public String getName() { return name; }
+    }
+
+    public static class Latency
+    {
+        final String name;
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        Latency(String name) { this.name = name; }
+
+        /**
+         * Records the duration since start obtained by System.nanoTime().
+         */
+        public void since(long start) { record(System.nanoTime() - start); }
+
+        public void record(long nanos)
+        {
+            nanos = Math.max(0L, nanos);
+            totalNanos.add(nanos);
+            buckets.incrementAndGet(bucket(nanos));
+            long max = maxNanos.get();
+            while(nanos > max && !maxNanos.compareAndSet(max, nanos))
+            {
+                max = maxNanos.get();
+            }
+        }
+
+        public String getName() { return name; }
+
+        void reset()
+        {
+            totalNanos.reset();
+            maxNanos.set(0);
+            for(int i = 0; i != BUCKETS; i++)
+            {
+                buckets.set(i, 0);
+            }
+        }
+    }
+
+    static int bucket(long nanos)
+    {
+        if(nanos < 4)
+        {
+            return (int)nanos;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(nanos);
+        return 4 * (octave - 1) + (int)((nanos >>> (octave - 2)) & 3);
+    }
+
+    static long lowerBound(int b)
+    {
+        if(b < 4)
+        {
+            return b;
+        }
+        return (4L + b % 4) << (b / 4 - 1);
+    }
+
+    /**
+     * Values of the metrics at the time of the snapshot, latencies are in milliseconds.
+     */
+    public static class Snapshot
+    {
+        final LinkedHashMap<String, Long> counters = new LinkedHashMap<String, Long>();
+        final LinkedHashMap<String, long[]> histograms = new LinkedHashMap<String, long[]>();
+        final LinkedHashMap<String, long[]> totals = new LinkedHashMap<String, long[]>();
+        long mappedBytes;
+
+        public long getCounter(String name)
+        {
+            Long v = counters.get(name);
+            return v == null ? 0 : v;
+        }
+
+        /**
+         * Number of the recorded durations of the latency name.
+         */
+        public long getCount(String name)
+        {
+            long[] t = totals.get(name);
+            return t == null ? 0 : t[0];
+        }
+
+        public double getMeanMillis(String name)
+        {
+            long[] t = totals.get(name);
+            return t == null || t[0] == 0 ? Double.NaN : t[1] * 1e-6 / t[0];
+        }
+
+        public double getMaxMillis(String name)
+        {
+            long[] t = totals.get(name);
+            return t == null || t[0] == 0 ? Double.NaN : t[2] * 1e-6;
+        }
+
+        /**
+         * Percentile from 0 to 100 of the latency name, the middle of its bucket.
+         */
+        public double getPercentileMillis(String name, double percent)
+        {
+            long[] h = histograms.get(name);
+            long n = getCount(name);
+            if(h == null || n == 0)
+            {
+                return Double.NaN;
+            }
+            long rank = Math.max(1L, (long)Math.ceil(percent / 100.0 * n));
+            long seen = 0;
+            for(int b = 0; b != BUCKETS; b++)
+            {
+                seen += h[b];
+                if(seen >= rank)
+                {
+                    long lo = lowerBound(b);
+                    long hi = b + 1 < BUCKETS ? lowerBound(b + 1) : lo;
+                    return Math.min((lo + hi) * 0.5e-6, getMaxMillis(name));
+                }
+            }
+            return getMaxMillis(name);
+        }
+
+        /**
+         * Bytes of the memory mapped buffers currently alive in the JVM.
+         */
+        public long getMappedBytes() { return mappedBytes; }
+
+        public Map<String, Long> getCounters() { return counters; }
+
+        public String[] getLatencyNames() { return totals.keySet().toArray(new String[0]); }
+
+        /**
+         * Tab separated rows of the metrics, the columns are given by HEADINGS.
+         */
+        public String toString()
+        {
+            StringBuilder s = new StringBuilder();
+            for(String name : totals.keySet())
+            {
+                s.append(String.format("%s\t%d\t%.3f\t%.3f\t%.3f\t%.3f\n", name, getCount(name),
+                                       getMeanMillis(name), getPercentileMillis(name, 50.0),
+                                       getPercentileMillis(name, 99.0), getMaxMillis(name)));
+            }
+            for(Map.Entry<String, Long> e : counters.entrySet())
+            {
+                s.append(String.format("%s\t%d\t\t\t\t\n", e.getKey(), e.getValue()));
+            }
+            s.append(String.format("Mapped bytes current\t%d\t\t\t\t\n", mappedBytes));
+            return s.toString();
+        }
+    }
+
+    /**
+     * Consistent per metric, the metrics are read one after another while the I/O goes on.
+     */
+    public static Snapshot snapshot()
+    {
+        Snapshot s = new Snapshot();
+        for(Latency l : LATENCIES)
+        {
+            long[] h = new long[BUCKETS];
+            for(int i = 0; i != BUCKETS; i++)
+            {
+                h[i] = l.buckets.get(i);
+            }
+            long count = 0;
+            for(long v : h)
+            {
+                count += v;
+            }
+            s.histograms.put(l.name, h);
+            s.totals.put(l.name, new long[] { count, l.totalNanos.sum(), l.maxNanos.get() });
+        }
+        for(Counter c : COUNTERS)
+        {
+            s.counters.put(c.name, c.value.sum());
+        }
+        for(BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+        {
+            if(b.getName().equals("mapped"))
+            {
+                s.mappedBytes = b.getMemoryUsed();
+            }
+        }
+        return s;
+    }
+
+    public static void reset()
+    {
+        for(Latency l : LATENCIES)
+        {
+            l.reset();
+        }
+        for(Counter c : COUNTERS)
+        {
+            c.value.reset();
+        }
+    }
+}
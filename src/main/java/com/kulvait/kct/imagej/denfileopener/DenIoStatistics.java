@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Window with the DEN I/O statistics
+ * The snapshot of DenIoMetrics is shown in a text window that is refreshed every second while
+ * it is open. With the argument reset the metrics are cleared.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.plugin.PlugIn;
+import ij.text.TextPanel;
+import ij.text.TextWindow;
+import java.awt.EventQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class DenIoStatistics implements PlugIn
+{
+    static final String TITLE = "DEN I/O statistics";
+
+    static TextWindow window;
+    static ScheduledExecutorService refresher;
+
+    public void run(String arg)
+    {
+        if(arg.equals("reset"))
+        {
+            DenIoMetrics.reset();
+            IJ.showStatus("DEN I/O statistics cleared");
+        }
+        show();
+    }
+
+    static synchronized void show()
+    {
+        if(window != null && window.isShowing())
+        {
+            refresh();
+            window.toFront();
+            return;
+        }
+        window = new TextWindow(TITLE, DenIoMetrics.HEADINGS,
+                                DenIoMetrics.snapshot().toString(), 640, 320);
+        if(refresher == null)
+        {
+            refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, TITLE);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                public void run()
+                {
+                    EventQueue.invokeLater(new Runnable() {
+                        public void run() { refresh(); }
+                    });
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Replaces the rows by the current snapshot, the refreshing stops when the window is closed
+     * so that no snapshots are taken when nobody looks.
+     */
+    static synchronized void refresh()
+    {
+        if(window == null || !window.isShowing())
+        {
+            window = null;
+            if(refresher != null)
+            {
+                refresher.shutdown();
+                refresher = null;
+            }
+            return;
+        }
+        TextPanel panel = window.getTextPanel();
+        panel.clear();
+        panel.setColumnHeadings(DenIoMetrics.HEADINGS);
+        for(String line : DenIoMetrics.snapshot().toString().split("\n"))
+        {
+            panel.appendLine(line);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Java Flight Recorder events of the slice reads, mappings and slice writes
+ * The class is loaded only by DenIoEvents when jdk.jfr is present, so that the plugin runs on
+ * JVMs without Flight Recorder. Compiling it needs JDK 11 or newer, enforced by the pom, the
+ * class file still targets Java 8 by source and target 1.8 but not by --release 8, which lacks
+ * jdk.jfr.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import java.io.File;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+class DenJfrEvents
+{
+    @Category({ "KCT", "DEN I/O" })
+    abstract static class DenEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Slice")
+        @Description("Zero based slice index, the first slice of a mapped window")
+        int slice;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Type")
+        String type;
+
+        @Label("Orientation")
+        String orientation;
+    }
+
+    @Name("com.kulvait.kct.den.SliceRead")
+    @Label("DEN Slice Read")
+    @Description("Slice decoded from the file into float pixels")
+    static class SliceRead extends DenEvent
+    {
+    }
+
+    @Name("com.kulvait.kct.den.Mapping")
+    @Label("DEN Mapping")
+    @Description("Memory mapping of the slices of the file")
+    static class Mapping extends DenEvent
+    {
+    }
+
+    @Name("com.kulvait.kct.den.SliceWrite")
+    @Label("DEN Slice Write")
+    @Description("Slice encoded and written to the file")
+    static class SliceWrite extends DenEvent
+    {
+    }
+
+    /**
+     * Started event of the kind or null when the event is not recorded.
+     */
+    static Object begin(int kind)
+    {
+        DenEvent e;
+        if(kind == DenIoEvents.SLICE_READ)
+        {
+            e = new SliceRead();
+        } else if(kind == DenIoEvents.MAPPING)
+        {
+            e = new Mapping();
+        } else
+        {
+            e = new SliceWrite();
+        }
+        if(!e.isEnabled())
+        {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    static void end(Object event, File f, int slice, long bytes, DenDataType type, boolean xmajor)
+    {
+        DenEvent e = (DenEvent)event;
+        e.end();
+        if(e.shouldCommit())
+        {
+            e.file = f == null ? null : f.getPath();
+            e.slice = slice;
+            e.bytes = bytes;
+            e.type = type == null ? null : type.name();
+            e.orientation = xmajor ? "x-major" : "y-major";
+            e.commit();
+        }
+    }
+}
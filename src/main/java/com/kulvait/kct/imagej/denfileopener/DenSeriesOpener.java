@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Opens a series of DEN files as one virtual stack
+ * The argument or the dialog gives a directory, whose DEN files form the series, or a glob
+ * pattern of the files, see DenSeriesVirtualStack.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.plugin.PlugIn;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class DenSeriesOpener implements PlugIn
+{
+    public void run(String arg)
+    {
+        String pattern = arg;
+        if(pattern.equals(""))
+        {
+            DirectoryChooser dc = new DirectoryChooser("Open DEN series ...");
+            if(dc.getDirectory() == null)
+                return;
+            GenericDialog gd = new GenericDialog("Open DEN series");
+            gd.addStringField("File name pattern", Prefs.get("options.denseriespattern", "*.den"),
+                              20);
+            gd.showDialog();
+            if(gd.wasCanceled())
+                return;
+            String name = gd.getNextString().trim();
+            Prefs.set("options.denseriespattern", name);
+            pattern = dc.getDirectory() + (name.isEmpty() ? "*.den" : name);
+        }
+        try
+        {
+            ImagePlus img = open(pattern);
+            img.show();
+            img.setSlice((img.getStackSize() + 1) / 2);
+        } catch(IOException e)
+        {
+            IJ.error("Can not open the DEN series.\n \n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Image of the series given by the directory or the glob pattern.
+     */
+    public static ImagePlus open(String pattern) throws IOException
+    {
+        long start = System.nanoTime();
+        List<File> files = DenSeriesVirtualStack.list(pattern);
+        DenSeriesVirtualStack stack = new DenSeriesVirtualStack(files);
+        System.out.printf("Series %s of %d files validated in %.2f s\n", pattern, files.size(),
+                          (System.nanoTime() - start) * 1e-9);
+        File dir = files.get(0).getAbsoluteFile().getParentFile();
+        ImagePlus img = new ImagePlus(dir.getName(), stack);
+        DenFileOpener.setHyperStackDimensions(
+            img, new long[] { stack.getWidth(), stack.getHeight(), stack.getSize() });
+        return img;
+    }
+}
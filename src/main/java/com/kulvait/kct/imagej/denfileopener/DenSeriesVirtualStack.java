@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Virtual stack of a series of DEN files
+ * Detectors might write one DEN per projection. The files of identical dimensions, type and
+ * orientation are served as consecutive slices decoded by DenVirtualStack. The files are mapped
+ * in windows of whole slices of up to 256MB as in DenVirtualStack, so that files above 2GB are
+ * served as well. Only a bounded number of the windows is referenced at a time, a file is open
+ * just for the duration of the mapping, so that the number of file descriptors does not grow with
+ * the length of the series. Java offers no explicit unmap, an evicted window stays mapped until it
+ * is garbage collected.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DenSeriesVirtualStack extends DenVirtualStack
+{
+    File[] files;
+    long[] dataByteOffsets;
+    int fileSlices;
+    int fileWindows;
+    // Window w of file k under the key k * fileWindows + w in the access order
+    LinkedHashMap<Long, MappedByteBuffer> maps;
+
+    /**
+     * Series of the files in the given order, the headers are validated concurrently.
+     */
+    public DenSeriesVirtualStack(List<File> files) throws IOException
+    {
+        this(files.toArray(new File[0]), headers(files));
+    }
+
+    DenSeriesVirtualStack(File[] files, DenFileInfo[] infos)
+    {
+        super(files[0], infos[0]);
+        this.files = files;
+        dataByteOffsets = new long[files.length];
+        for(int k = 0; k != files.length; k++)
+        {
+            dataByteOffsets[k] = infos[k].getDataByteOffset();
+        }
+        fileSlices = (int)inf.getDimz();
+        dimz = fileSlices * files.length;
+        fileWindows = (fileSlices + windowSlices - 1) / windowSlices;
+        final int maxMapped = Math.max(1, (int)Prefs.get("options.denseriesmaps", 64));
+        maps = new LinkedHashMap<Long, MappedByteBuffer>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest)
+            {
+                return size() > maxMapped;
+            }
+        };
+    }
+
+    /**
+     * DEN files of the directory or the files matching the glob pattern, for example
+     * /data/scan/proj_*.den, in the natural order of the names so that proj_2 precedes proj_10.
+     */
+    public static List<File> list(String pathOrPattern) throws IOException
+    {
+        File f = new File(pathOrPattern);
+        if(f.isDirectory())
+        {
+            pathOrPattern = new File(f, "*.den").getPath();
+        }
+        List<File> out = DenBatch.expand(pathOrPattern);
+        Collections.sort(out, NATURAL_ORDER);
+        return out;
+    }
+
+    static final Comparator<File> NATURAL_ORDER = new Comparator<File>() {
+        public int compare(File a, File b)
+        {
+            String x = a.getName();
+            String y = b.getName();
+            int i = 0, j = 0;
+            while(i < x.length() && j < y.length())
+            {
+                char c = x.charAt(i);
+                char d = y.charAt(j);
+                if(Character.isDigit(c) && Character.isDigit(d))
+                {
+                    int i0 = i, j0 = j;
+                    while(i < x.length() && Character.isDigit(x.charAt(i)))
+                        i++;
+                    while(j < y.length() && Character.isDigit(y.charAt(j)))
+                        j++;
+                    String u = x.substring(i0, i).replaceFirst("^0+(?=.)", "");
+                    String v = y.substring(j0, j).replaceFirst("^0+(?=.)", "");
+                    int cmp = u.length() != v.length() ? u.length() - v.length() : u.compareTo(v);
+                    if(cmp != 0)
+                    {
+                        return cmp;
+                    }
+                } else
+                {
+                    if(c != d)
+                    {
+                        return c - d;
+                    }
+                    i++;
+                    j++;
+                }
+            }
+            int cmp = (x.length() - i) - (y.length() - j);
+            return cmp != 0 ? cmp : a.getPath().compareTo(b.getPath());
+        }
+    };
+
+    /**
+     * Parses the headers on Prefs.getThreads() threads and checks that all files are valid DEN
+     * of the dimensions, type and orientation of the first file.
+     */
+    static DenFileInfo[] headers(List<File> files) throws IOException
+    {
+        if(files.isEmpty())
+        {
+            throw new IOException("No DEN files in the series.");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Prefs.getThreads());
+        List<Future<DenFileInfo>> parsed = new ArrayList<Future<DenFileInfo>>();
+        DenFileInfo[] infos = new DenFileInfo[files.size()];
+        try
+        {
+            for(final File f : files)
+            {
+                parsed.add(pool.submit(new Callable<DenFileInfo>() {
+                    public DenFileInfo call() { return new DenFileInfo(f); }
+                }));
+            }
+            for(int k = 0; k != infos.length; k++)
+            {
+                infos[k] = parsed.get(k).get();
+            }
+        } catch(InterruptedException e)
+        {
+            throw new IOException(e);
+        } catch(ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        } finally
+        {
+            pool.shutdownNow();
+        }
+        DenFileInfo first = infos[0];
+        for(int k = 0; k != infos.length; k++)
+        {
+            DenFileInfo inf = infos[k];
+            String name = files.get(k).getName();
+            if(!inf.isValidDEN())
+            {
+                throw new IOException(String.format("File %s is not valid DEN!", name));
+            }
+            boolean same = inf.getDIMCOUNT() == first.getDIMCOUNT()
+                           && inf.getElementType() == first.getElementType()
+                           && inf.isXmajor() == first.isXmajor();
+            for(int i = 0; same && i != first.getDIMCOUNT(); i++)
+            {
+                same = inf.getDim(i) == first.getDim(i);
+            }
+            if(!same)
+            {
+                throw new IOException(String.format(
+                    "File %s of %s %s differs from %s of %s %s.", name, dimString(inf),
+                    inf.getElementType(), files.get(0).getName(), dimString(first),
+                    first.getElementType()));
+            }
+        }
+        return infos;
+    }
+
+    static String dimString(DenFileInfo inf)
+    {
+        StringBuilder s = new StringBuilder();
+        for(int i = 0; i != inf.getDIMCOUNT(); i++)
+        {
+            s.append(i == 0 ? "" : "x").append(inf.getDim(i));
+        }
+        return s.toString();
+    }
+
+    public int getFileCount() { return files.length; }
+
+    /**
+     * File holding 1 based slice n.
+     */
+    public File getFile(int n) { return files[(n - 1) / fileSlices]; }
+
+    /**
+     * Dropping the eldest window only releases the reference, the window is unmapped when it is
+     * garbage collected.
+     */
+    ByteBuffer sliceBuffer(int n) throws IOException
+    {
+        int k = (n - 1) / fileSlices;
+        int w = ((n - 1) % fileSlices) / windowSlices;
+        int i = ((n - 1) % fileSlices) % windowSlices;
+        long key = (long)k * fileWindows + w;
+        MappedByteBuffer map;
+        synchronized(maps)
+        {
+            map = maps.get(key);
+            if(map == null)
+            {
+                map = mapWindow(k, w);
+                maps.put(key, map);
+            }
+        }
+        ByteBuffer buf = map.duplicate();
+        ((Buffer)buf).position((int)(i * sliceBytes));
+        ((Buffer)buf).limit((int)((i + 1) * sliceBytes));
+        return buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Maps window w of file k, the mapping stays valid after the channel is closed.
+     */
+    MappedByteBuffer mapWindow(int k, int w) throws IOException
+    {
+        long count = Math.min(windowSlices, fileSlices - (long)w * windowSlices);
+        long bytes = count * sliceBytes;
+        long pos = dataByteOffsets[k] + (long)w * windowSlices * sliceBytes;
+        FileChannel ch = FileChannel.open(files[k].toPath(), StandardOpenOption.READ);
+        try
+        {
+            long start = System.nanoTime();
+            Object event = DenIoEvents.begin(DenIoEvents.MAPPING);
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, pos, bytes);
+            DenIoEvents.end(event, files[k], k * fileSlices + w * windowSlices, bytes, typ,
+                            inf.isXmajor());
+            DenIoMetrics.MAPPING.since(start);
+            DenIoMetrics.BYTES_MAPPED.add(bytes);
+            return map;
+        } finally
+        {
+            ch.close();
+        }
+    }
+
+    boolean isPlainDEN() { return false; }
+
+    public String getSliceLabel(int n)
+    {
+        String name = getFile(n).getName();
+        return fileSlices == 1 ? name : String.format("%s z=%d", name, (n - 1) % fileSlices);
+    }
+
+    public synchronized void setEditable() throws IOException
+    {
+        throw new IOException("Series of DEN files can not be edited in place.");
+    }
+
+    public synchronized void startFollowing(ImagePlus imp, long periodMillis) {}
+
+    public void close() throws IOException
+    {
+        synchronized(maps)
+        {
+            maps.clear();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Controls the editable mode of the virtually opened DEN
+ * The argument edit switches the stack of the current image to the read-write mode, save
+ * writes the modified slices in place and discard drops them.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+
+public class DenStackEditor implements PlugIn
+{
+    public void run(String arg)
+    {
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if(imp == null)
+        {
+            IJ.noImage();
+            return;
+        }
+        if(!(imp.getStack() instanceof DenVirtualStack))
+        {
+            IJ.error("The image is not a DEN opened as a virtual stack.");
+            return;
+        }
+        DenVirtualStack stack = (DenVirtualStack)imp.getStack();
+        try
+        {
+            if(arg.equals("edit"))
+            {
+                stack.setEditable();
+                IJ.showStatus(String.format("Edits of %s are kept until saved or discarded",
+                                            stack.f.getName()));
+            }
+            if(arg.equals("save"))
+            {
+                saveEdits(imp, stack);
+            }
+            if(arg.equals("discard"))
+            {
+                discardEdits(imp, stack);
+            }
+        } catch(IOException e)
+        {
+            IJ.error("An error occured writing the edits to the file.\n \n" + e);
+        }
+    }
+
+    static void saveEdits(ImagePlus imp, DenVirtualStack stack) throws IOException
+    {
+        if(!stack.isEditable())
+        {
+            IJ.error("The stack is not editable, use Edit DEN in place first.");
+            return;
+        }
+        // ImagePlus passes the current slice to the stack only when leaving it
+        ImageProcessor ip = imp.getProcessor();
+        stack.setPixels(ip.getPixels(), imp.getCurrentSlice());
+        int n = stack.getEditedSlices();
+        stack.saveEdits();
+        imp.changes = false;
+        IJ.showStatus(String.format("Written %d slices to %s", n, stack.f.getName()));
+    }
+
+    static void discardEdits(ImagePlus imp, DenVirtualStack stack)
+    {
+        int n = stack.getEditedSlices();
+        stack.discardEdits();
+        ImageProcessor ip = imp.getProcessor();
+        ip.setPixels(stack.getProcessor(imp.getCurrentSlice()).getPixels());
+        ip.resetMinAndMax();
+        imp.changes = false;
+        imp.updateAndDraw();
+        IJ.showStatus(String.format("Discarded edits of %d slices", n));
+    }
+}
@@ -5,19 +5,37 @@
  * Description : Implementation of memory mapped views to DEN files
  * So called virtual stack is created.
  * Memory representation is always float independent of type.
+ * Slices are mapped in windows that are kept for subsequent access, a file that is
+ * being appended to can be followed. In the editable mode the modified slices are kept
+ * in memory until they are written back in place or discarded. Rendered 8-bit frames are
+ * cached for the display, see DisplayFrameCache. The stacks of the same file share the file
+ * handle, the windows and the frames through DenFileRegistry. The files on the network might be
+ * cached on a local disk, see DenDiskCache.
  * Date: 2022
  ******************************************************************************/
 package com.kulvait.kct.imagej.denfileopener;
 
+import java.awt.EventQueue;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import ij.IJ;
+import ij.ImagePlus;
 import ij.ImageStack;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 // Ideas based on
@@ -31,23 +49,60 @@ public class DenVirtualStack extends ImageStack
     DenFileInfo inf;
     RandomAccessFile df;
     FileChannel inChannel;
-    int dimx, dimy, dimz;
+    int dimx, dimy;
+    volatile int dimz;
     int dimImg;
     DenDataType typ;
     float[] pixelArray;
+    long sliceBytes;
+    int windowSlices;
+    ArrayList<MappedByteBuffer> windows;
+    FileChannel.MapMode mapMode;
+    ScheduledExecutorService follower;
+    long followedFileSize;
+    boolean editable;
+    TreeMap<Integer, float[]> dirty;
+    DisplayFrameCache frames;
+    // Handle of the file in DenFileRegistry, null for the stacks not reading plain DEN
+    DenFileRegistry.SharedFile shared;
+    // Reader of the slices, null when the slices are read only through sliceBuffer
+    DenIoBackend backend;
+    // Slices of the file in the local disk cache or null
+    DenDiskCache.Volume diskCache;
+    boolean closed;
 
-    DenVirtualStack(File f) throws IOException
+    DenVirtualStack(File f) throws IOException { this(f, false); }
+
+    /**
+     * With allowTrailingData the file might contain uncommitted slices after the data described
+     * by the header, which is the case for the files being appended to.
+     */
+    DenVirtualStack(File f, boolean allowTrailingData) throws IOException
+    {
+        this(f, new DenFileInfo(f, allowTrailingData));
+        shared = DenFileRegistry.acquire(f, sliceBytes);
+        backend = shared.backend;
+        df = shared.df;
+        inChannel = shared.channel;
+        windows = shared.windows;
+        frames = shared.frames;
+        // The file being appended to changes its size and so its key
+        diskCache = allowTrailingData ? null : DenDiskCache.forFile(f);
+    }
+
+    /**
+     * Stack described by inf without opening the file, the subclasses reading other than plain
+     * DEN provide sliceBuffer.
+     */
+    DenVirtualStack(File f, DenFileInfo inf)
     {
         this.f = f;
-        this.inf = new DenFileInfo(f);
+        this.inf = inf;
         if(!inf.isValidDEN())
         {
             throw new RuntimeException(String.format("File %s is not valid DEN!", f.getName()));
         }
 
-        this.df = new RandomAccessFile(f, "r");
-        inChannel = df.getChannel();
-
         // Supports fast access, if from undefined dimension these are ones
         dimx = (int)inf.getDimx();
         dimy = (int)inf.getDimy();
@@ -55,6 +110,276 @@ public class DenVirtualStack extends ImageStack
         dimImg = dimx * dimy;
         typ = inf.getElementType();
         pixelArray = new float[dimImg];
+        sliceBytes = inf.getElementSize() * (long)dimImg;
+        windowSlices = (int)Math.max(1L, (256L * 1024L * 1024L) / Math.max(1L, sliceBytes));
+        windows = new ArrayList<MappedByteBuffer>();
+        mapMode = FileChannel.MapMode.READ_ONLY;
+        dirty = new TreeMap<Integer, float[]>();
+        frames = new DisplayFrameCache();
+    }
+
+    /**
+     * Reopens the file for reading and writing, from now on the slices passed to setPixels that
+     * differ from the file are kept in the write-back buffer until saveEdits or discardEdits is
+     * called.
+     */
+    public synchronized void setEditable() throws IOException
+    {
+        if(editable)
+        {
+            return;
+        }
+        if(typ != DenDataType.UINT8 && typ != DenDataType.UINT16 && typ != DenDataType.UINT32
+           && typ != DenDataType.FLOAT32 && typ != DenDataType.FLOAT64)
+        {
+            throw new IOException(
+                String.format("The type %s is not implemented yet!", typ.name()));
+        }
+        stopFollowing();
+        RandomAccessFile rw = new RandomAccessFile(f, "rw");
+        synchronized(windows)
+        {
+            // Read only windows of the shared handle can not be written to, the frames of the
+            // edited slices are not shown by the other stacks of the file
+            windows = new ArrayList<MappedByteBuffer>();
+            mapMode = FileChannel.MapMode.READ_WRITE;
+            df = rw;
+            inChannel = df.getChannel();
+        }
+        frames = new DisplayFrameCache();
+        editable = true;
+    }
+
+    public boolean isEditable() { return editable; }
+
+    /**
+     * True when the slices are stored in the plain DEN f at the offsets given by inf, so that
+     * the file might be read or copied directly.
+     */
+    boolean isPlainDEN() { return true; }
+
+    /**
+     * Number of the modified slices that are not yet written to the file.
+     */
+    public int getEditedSlices()
+    {
+        synchronized(dirty)
+        {
+            return dirty.size();
+        }
+    }
+
+    /**
+     * Writes the modified slices in place through the read-write mapping and forces the touched
+     * windows to the disk. Values are rounded and clamped to the range of the integer types.
+     */
+    public void saveEdits() throws IOException
+    {
+        TreeMap<Integer, float[]> edits;
+        synchronized(dirty)
+        {
+            edits = new TreeMap<Integer, float[]>(dirty);
+        }
+        if(edits.isEmpty())
+        {
+            return;
+        }
+        SliceEncoder encoder = new SliceEncoder(typ);
+        float[] transposed = inf.isXmajor() ? null : new float[dimImg];
+        int done = 0;
+        for(Map.Entry<Integer, float[]> e : edits.entrySet())
+        {
+            int n = e.getKey();
+            float[] p = e.getValue();
+            if(transposed != null)
+            {
+                for(int y = 0; y != dimy; y++)
+                {
+                    for(int x = 0; x != dimx; x++)
+                    {
+                        transposed[x * dimy + y] = p[y * dimx + x];
+                    }
+                }
+                p = transposed;
+            }
+            encoder.encode(p, sliceBuffer(n), n);
+            if(shared != null)
+            {
+                shared.frames.invalidate(n);
+            }
+            if(diskCache != null)
+            {
+                diskCache.remove(n);
+            }
+            done++;
+            IJ.showProgress(done, edits.size());
+        }
+        synchronized(windows)
+        {
+            for(MappedByteBuffer map : windows)
+            {
+                if(map != null)
+                {
+                    map.force();
+                }
+            }
+        }
+        synchronized(dirty)
+        {
+            // Slices modified again during the save stay dirty
+            for(Map.Entry<Integer, float[]> e : edits.entrySet())
+            {
+                if(dirty.get(e.getKey()) == e.getValue())
+                {
+                    dirty.remove(e.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the modified slices, subsequent reads return the content of the file.
+     */
+    public void discardEdits()
+    {
+        synchronized(dirty)
+        {
+            dirty.clear();
+        }
+        frames.clear();
+    }
+
+    /**
+     * Slices are mapped in windows of whole slices of up to 256MB. Windows are kept for the
+     * subsequent calls, only the last window of the growing file is remapped to cover the new
+     * slices.
+     */
+    ByteBuffer sliceBuffer(int n) throws IOException
+    {
+        int w = (n - 1) / windowSlices;
+        int i = (n - 1) % windowSlices;
+        MappedByteBuffer map;
+        synchronized(windows)
+        {
+            while(windows.size() <= w)
+            {
+                windows.add(null);
+            }
+            map = windows.get(w);
+            if(map == null || map.capacity() < (i + 1) * sliceBytes)
+            {
+                long count = Math.min(windowSlices, dimz - (long)w * windowSlices);
+                long pos = inf.getDataByteOffset() + (long)w * windowSlices * sliceBytes;
+                long start = System.nanoTime();
+                Object event = DenIoEvents.begin(DenIoEvents.MAPPING);
+                map = inChannel.map(mapMode, pos, count * sliceBytes);
+                DenIoEvents.end(event, f, w * windowSlices, count * sliceBytes, typ,
+                                inf.isXmajor());
+                DenIoMetrics.MAPPING.since(start);
+                DenIoMetrics.BYTES_MAPPED.add(count * sliceBytes);
+                windows.set(w, map);
+            }
+        }
+        ByteBuffer buf = map.duplicate();
+        ((Buffer)buf).position((int)(i * sliceBytes));
+        ((Buffer)buf).limit((int)((i + 1) * sliceBytes));
+        return buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Follows the file that is being appended to, for example by DenAppender. The size of the
+     * file is polled and when it changes, the last dimension is re-read from the header, the
+     * stack is extended and the image jumps to the newest slice. Polling stops when the image
+     * window is closed.
+     */
+    public synchronized void startFollowing(final ImagePlus imp, long periodMillis)
+    {
+        if(follower != null || inf.getDIMCOUNT() < 3)
+        {
+            return;
+        }
+        follower = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "DEN follower " + f.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        follower.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                if(imp.getWindow() == null)
+                {
+                    stopFollowing();
+                    return;
+                }
+                try
+                {
+                    if(refreshSize())
+                    {
+                        EventQueue.invokeLater(new Runnable() {
+                            public void run() { showNewestSlice(imp); }
+                        });
+                    }
+                } catch(IOException e)
+                {
+                    System.out.printf("Following %s failed: %s\n", f.getPath(), e.toString());
+                    stopFollowing();
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopFollowing()
+    {
+        if(follower != null)
+        {
+            follower.shutdown();
+            follower = null;
+        }
+    }
+
+    /**
+     * When the file size changed, re-reads the last dimension from the header and returns true
+     * if the stack grew. DenAppender writes the data before the header, so that the header is
+     * re-read on each poll until it covers the whole file.
+     */
+    boolean refreshSize() throws IOException
+    {
+        long fileSize = inChannel.size();
+        if(fileSize == followedFileSize)
+        {
+            return false;
+        }
+        ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        inChannel.read(b, inf.getLastDimPosition());
+        long lastDim = inf.isExtendedDEN() ? b.getInt(0) & 0xffffffffL : b.getShort(0) & 0xffff;
+        long newDimz = lastDim * inf.getFrameSlices();
+        long committedSize = inf.getDataByteOffset() + newDimz * sliceBytes;
+        if(committedSize >= fileSize)
+        {
+            followedFileSize = fileSize;
+        }
+        if(newDimz <= dimz || committedSize > fileSize)
+        {
+            return false;
+        }
+        inf.setLastDim(lastDim);
+        dimz = (int)newDimz;
+        return true;
+    }
+
+    void showNewestSlice(ImagePlus imp)
+    {
+        imp.setStack(this);
+        long[] dim = new long[inf.getDIMCOUNT()];
+        for(int i = 0; i != dim.length; i++)
+        {
+            dim[i] = inf.getDim(i);
+        }
+        DenFileOpener.setHyperStackDimensions(imp, dim);
+        imp.setSlice(dimz);
     }
 
     /**
@@ -71,7 +396,33 @@ public class DenVirtualStack extends ImageStack
 
     public void deleteLastSlice() {}
 
-    public void setPixels(Object pixels, int n) {}
+    /**
+     * ImagePlus passes the pixels of the current slice here whenever it leaves the slice. In the
+     * editable mode the slice is copied to the write-back buffer when it differs from the stored
+     * content, otherwise it is ignored.
+     */
+    public void setPixels(Object pixels, int n)
+    {
+        if(!editable || !(pixels instanceof float[]) || ((float[])pixels).length != dimImg
+           || n < 1 || n > dimz)
+        {
+            return;
+        }
+        float[] p = (float[])pixels;
+        synchronized(dirty)
+        {
+            float[] current = dirty.get(n);
+            if(current == null)
+            {
+                current = decodeSlice(n, new float[dimImg]);
+            }
+            if(!Arrays.equals(current, p))
+            {
+                dirty.put(n, p.clone());
+                frames.invalidate(n);
+            }
+        }
+    }
 
     public void setSliceLabel(String label, int n) {}
 
@@ -83,34 +434,61 @@ public class DenVirtualStack extends ImageStack
     // 1 based n
     public ImageProcessor getProcessor(int n)
     {
-        FloatProcessor fp = new FloatProcessor(dimx, dimy);
-        getPixels(n);
-        int index;
-        for(int y = 0; y != dimy; y++)
+        return new CachedFloatProcessor(dimx, dimy, readSlice(n, new float[dimImg]), frames, n);
+    }
+
+    public Object getPixels(int n) { return readSlice(n, pixelArray); }
+
+    /**
+     * Decodes 1 based slice n into the row major array out of the size dimx * dimy, the modified
+     * slices are returned from the write-back buffer. It is safe to call it concurrently with
+     * distinct out arrays.
+     */
+    public float[] readSlice(int n, float[] out)
+    {
+        synchronized(dirty)
         {
-            for(int x = 0; x != dimx; x++)
+            float[] p = dirty.get(n);
+            if(p != null)
             {
-                index = y * dimx + x;
-                fp.setf(x, y, pixelArray[index]);
+                System.arraycopy(p, 0, out, 0, dimImg);
+                return out;
             }
         }
-        return fp;
+        return decodeSlice(n, out);
     }
 
-    public Object getPixels(int n)
+    float[] decodeSlice(int n, float[] out)
     {
         if(n > dimz)
         {
             throw new RuntimeException(
                 String.format("Illegal acces to the slice %d/%d", n - 1, dimz));
         }
-        long pos = inf.getDataByteOffset() + inf.getElementSize() * (long)(n - 1) * (long)dimImg;
-        MappedByteBuffer buf;
+        long start = System.nanoTime();
+        Object event = DenIoEvents.begin(DenIoEvents.SLICE_READ);
+        DenIoBackend reader = readBackend();
+        DenDiskCache.Volume cache = editable ? null : diskCache;
+        ByteBuffer buf = null;
+        boolean cached = false;
         try
         {
-            buf = inChannel.map(FileChannel.MapMode.READ_ONLY, pos, inf.getElementSize() * dimImg);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
-            buf.load();
+            if(cache != null)
+            {
+                buf = cache.get(n, (int)sliceBytes);
+                cached = buf != null;
+            }
+            if(!cached)
+            {
+                buf = reader == null
+                          ? sliceBuffer(n)
+                          : reader.read(inf.getDataByteOffset() + (n - 1) * sliceBytes,
+                                        (int)sliceBytes);
+                if(cache != null)
+                {
+                    cache.put(n, buf);
+                }
+            }
             float f;
             long val_lng;
             int val_int;
@@ -147,7 +525,7 @@ public class DenVirtualStack extends ImageStack
                             throw new RuntimeException(
                                 String.format("The type %s is not implemented yet!", typ.name()));
                         }
-                        pixelArray[index] = f;
+                        out[index] = f;
                     }
                 }
             } else
@@ -180,20 +558,50 @@ public class DenVirtualStack extends ImageStack
                             throw new RuntimeException(
                                 String.format("The type %s is not implemented yet!", typ.name()));
                         }
-                        pixelArray[index] = f;
+                        out[index] = f;
                     }
                 }
             }
-
-            return pixelArray;
+            DenIoEvents.end(event, this.f, n - 1, sliceBytes, typ, xmajor);
+            DenIoMetrics.SLICE_DECODE.since(start);
+            DenIoMetrics.BYTES_READ.add(sliceBytes);
+            return out;
         } catch(IOException e)
         {
             e.printStackTrace();
             throw new RuntimeException(
                 String.format("Can not map buffer of the slice %d/%d", n - 1, dimz));
+        } finally
+        {
+            if(cached)
+            {
+                cache.release(buf);
+            } else if(reader != null && buf != null)
+            {
+                reader.release(buf);
+            }
         }
     }
 
+    /**
+     * Backend reading the slices that are not served by the mapped windows. The editable stack
+     * writes through its read-write windows, so that it reads them as well.
+     */
+    synchronized DenIoBackend readBackend()
+    {
+        return backend == null || backend.isMapped() || editable ? null : backend;
+    }
+
+    /**
+     * Name of the access method of the slices of the plain DEN, see DenIoBackend, null for the
+     * other sources.
+     */
+    public String getIoBackend()
+    {
+        DenIoBackend reader = readBackend();
+        return reader != null ? reader.getName() : isPlainDEN() ? DenIoBackend.MMAP : null;
+    }
+
     /**
      * 8=byte, 16=short, 24=RGB, 32=float
      *
@@ -222,7 +630,7 @@ public class DenVirtualStack extends ImageStack
         }
     }
 
-    public int getSize() { return (int)inf.getDimz(); }
+    public int getSize() { return dimz; }
 
     public int getWidth() { return (int)inf.getDimx(); }
 
@@ -231,4 +639,29 @@ public class DenVirtualStack extends ImageStack
     public String getSliceLabel(int n) { return String.format("z=%d", n - 1, (int)inf.getDim(2)); }
 
     public boolean isVirtual() { return true; }
+
+    /**
+     * Closes the underlying file, the stack can not be read afterwards.
+     */
+    public void close() throws IOException
+    {
+        stopFollowing();
+        synchronized(this)
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+        }
+        if(editable)
+        {
+            inChannel.close();
+            df.close();
+        }
+        if(shared != null)
+        {
+            DenFileRegistry.release(shared);
+        }
+    }
 }
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Cache of the 8-bit display frames of the float virtual stacks
+ * FloatProcessor maps the float pixels to bytes by the display range each time the image is
+ * drawn, the LUT is applied afterwards by the color model of the image. The rendered bytes thus
+ * depend only on the slice and the display range, so that the frames are kept by both and reused
+ * when the stack is scrolled or played, also after the LUT is changed. The cache might be shared
+ * by the windows of the same file that show different ranges, see DenFileRegistry.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.Prefs;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+public class DisplayFrameCache
+{
+    long capacity;
+    long bytes;
+    LinkedHashMap<Frame, byte[]> frames;
+    // Slices of the pixel arrays handed out by the stack, arrays are compared by identity
+    WeakHashMap<float[], Integer> slices;
+
+    /**
+     * Capacity in MB is given by the preference options.denframecache, 0 disables the cache.
+     */
+    public DisplayFrameCache()
+    {
+        this((int)Prefs.get("options.denframecache", 256) * 1024L * 1024L);
+    }
+
+    public DisplayFrameCache(long capacity)
+    {
+        this.capacity = capacity;
+        frames = new LinkedHashMap<Frame, byte[]>(64, 0.75f, true);
+        slices = new WeakHashMap<float[], Integer>();
+    }
+
+    /**
+     * Records that pixels hold the unmodified content of 1 based slice n.
+     */
+    public synchronized void register(float[] pixels, int n) { slices.put(pixels, n); }
+
+    /**
+     * Slice of the pixels handed out by the stack or 0.
+     */
+    public synchronized int sliceOf(Object pixels)
+    {
+        Integer n = pixels instanceof float[] ? slices.get(pixels) : null;
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * Key of the frame of the slice n rendered with the range min, max.
+     */
+    static class Frame
+    {
+        final int n;
+        final int min, max;
+
+        Frame(int n, float min, float max)
+        {
+            this.n = n;
+            this.min = Float.floatToIntBits(min);
+            this.max = Float.floatToIntBits(max);
+        }
+
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof Frame))
+            {
+                return false;
+            }
+            Frame f = (Frame)o;
+            return n == f.n && min == f.min && max == f.max;
+        }
+
+        public int hashCode() { return (n * 31 + min) * 31 + max; }
+    }
+
+    public synchronized byte[] get(int n, float min, float max)
+    {
+        byte[] frame = frames.get(new Frame(n, min, max));
+        if(frame == null)
+        {
+            DenIoMetrics.FRAME_CACHE_MISSES.increment();
+        } else
+        {
+            DenIoMetrics.FRAME_CACHE_HITS.increment();
+        }
+        return frame;
+    }
+
+    /**
+     * Stores the frame of the slice n rendered with the range min, max, the least recently used
+     * frames are evicted above the capacity.
+     */
+    public synchronized void put(int n, float min, float max, byte[] frame)
+    {
+        if(frame.length > capacity)
+        {
+            return;
+        }
+        byte[] old = frames.put(new Frame(n, min, max), frame);
+        bytes += frame.length - (old == null ? 0 : old.length);
+        Iterator<Map.Entry<Frame, byte[]>> it = frames.entrySet().iterator();
+        while(bytes > capacity && it.hasNext())
+        {
+            bytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops the frames of the slice n after its content changed.
+     */
+    public synchronized void invalidate(int n)
+    {
+        Iterator<Map.Entry<Frame, byte[]>> it = frames.entrySet().iterator();
+        while(it.hasNext())
+        {
+            Map.Entry<Frame, byte[]> e = it.next();
+            if(e.getKey().n == n)
+            {
+                bytes -= e.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        frames.clear();
+        bytes = 0;
+    }
+
+    public synchronized int getFrameCount() { return frames.size(); }
+}
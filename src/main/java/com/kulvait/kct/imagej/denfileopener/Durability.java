@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Enum to describe what shall be forced to the disk after writing
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+public enum Durability {
+    NONE, // Leave it to the page cache
+    DATA, // FileChannel.force(false)
+    METADATA; // FileChannel.force(true), data and file metadata
+
+    public void force(FileChannel channel) throws IOException
+    {
+        if(this == DATA)
+        {
+            channel.force(false);
+        } else if(this == METADATA)
+        {
+            channel.force(true);
+        }
+    }
+}
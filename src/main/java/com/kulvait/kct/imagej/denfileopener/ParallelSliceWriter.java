@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Writes slices of the raw arrays in parallel
+ * Slices are encoded on a worker pool and written by positional writes as the offset
+ * of each slice is known in advance. Alternatively the file is presized and the slices
+ * are encoded directly into read-write mapped windows.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.Prefs;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ParallelSliceWriter
+{
+    /**
+     * Source of the data to write. The fetch method is called sequentially from the thread
+     * calling write, so that it might access ImageStack that is not thread safe. The encode
+     * method is called concurrently from the worker threads and shall fill out the little endian
+     * buffer by exactly sliceBytes of the slice k.
+     */
+    public interface SliceSource
+    {
+        Object fetch(int k) throws IOException;
+
+        void encode(int k, Object pixels, ByteBuffer out) throws IOException;
+    }
+
+    FileChannel channel;
+    long dataByteOffset;
+    int sliceBytes;
+    int sliceCount;
+    int threads;
+    long bufferMemory;
+    boolean mappedOutput;
+    long mappingWindow;
+    // Reported by the slice write events
+    File eventFile;
+    DenDataType eventType;
+
+    AtomicReference<Throwable> failure;
+    AtomicInteger done;
+
+    public ParallelSliceWriter(FileChannel channel,
+                               long dataByteOffset,
+                               int sliceBytes,
+                               int sliceCount)
+    {
+        this.channel = channel;
+        this.dataByteOffset = dataByteOffset;
+        this.sliceBytes = sliceBytes;
+        this.sliceCount = sliceCount;
+        this.threads = Prefs.getThreads();
+        this.bufferMemory = 256L * 1024L * 1024L;
+        this.mappedOutput = false;
+        this.mappingWindow = 1024L * 1024L * 1024L;
+    }
+
+    public void setThreads(int threads) { this.threads = Math.max(1, threads); }
+
+    /**
+     * Upper bound of the memory used by the buffers of the slices in flight, there is always at
+     * least one buffer.
+     */
+    public void setBufferMemory(long bufferMemory) { this.bufferMemory = bufferMemory; }
+
+    /**
+     * In mapped output mode the file is presized and the encoder writes directly into the read
+     * write mapping of the window of the file, channel must be opened for reading and writing.
+     */
+    public void setMappedOutput(boolean mappedOutput) { this.mappedOutput = mappedOutput; }
+
+    /**
+     * Size of the mapped windows in bytes, the window always contains at least one slice.
+     */
+    public void setMappingWindow(long mappingWindow) { this.mappingWindow = mappingWindow; }
+
+    public int getThreads() { return threads; }
+
+    /**
+     * File and type of the x-major slices reported by the slice write events.
+     */
+    public void setEventSource(File f, DenDataType type)
+    {
+        this.eventFile = f;
+        this.eventType = type;
+    }
+
+    public void write(SliceSource src) throws IOException
+    {
+        failure = new AtomicReference<Throwable>();
+        done = new AtomicInteger();
+        int inFlight
+            = (int)Math.max(1L, Math.min(2L * threads, bufferMemory / Math.max(1, sliceBytes)));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, inFlight));
+        try
+        {
+            if(mappedOutput)
+            {
+                writeMapped(src, pool, inFlight);
+            } else
+            {
+                writeBuffered(src, pool, inFlight);
+            }
+        } catch(InterruptedException e)
+        {
+            failure.compareAndSet(null, e);
+        } finally
+        {
+            pool.shutdown();
+            try
+            {
+                while(!pool.awaitTermination(1, TimeUnit.SECONDS))
+                    ;
+            } catch(InterruptedException e)
+            {
+                pool.shutdownNow();
+                failure.compareAndSet(null, e);
+            }
+        }
+        rethrowFailure();
+    }
+
+    private void writeBuffered(final SliceSource src, ExecutorService pool, int inFlight)
+        throws IOException, InterruptedException
+    {
+        final ArrayBlockingQueue<ByteBuffer> buffers
+            = new ArrayBlockingQueue<ByteBuffer>(inFlight);
+        for(int i = 0; i != inFlight; i++)
+        {
+            buffers.add(ByteBuffer.allocateDirect(sliceBytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        for(int i = 0; i < sliceCount && failure.get() == null; i++)
+        {
+            final int k = i;
+            final ByteBuffer buf = buffers.take();
+            final Object pixels = src.fetch(k);
+            final long pos = dataByteOffset + (long)k * (long)sliceBytes;
+            pool.execute(new SliceTask(k) {
+                void process() throws IOException
+                {
+                    ((Buffer)buf).clear();
+                    src.encode(k, pixels, buf);
+                    ((Buffer)buf).flip();
+                    long p = pos;
+                    while(buf.hasRemaining())
+                    {
+                        p += channel.write(buf, p);
+                    }
+                }
+
+                void release() { buffers.add(buf); }
+            });
+        }
+    }
+
+    private void writeMapped(final SliceSource src, ExecutorService pool, int inFlight)
+        throws IOException, InterruptedException
+    {
+        long endPosition = dataByteOffset + (long)sliceCount * (long)sliceBytes;
+        if(channel.size() < endPosition)
+        {
+            // Presize the file so that the whole window can be mapped
+            channel.write(ByteBuffer.wrap(new byte[1]), endPosition - 1);
+        }
+        int windowSlices
+            = (int)Math.max(1L, Math.min(Integer.MAX_VALUE / Math.max(1, sliceBytes),
+                                         mappingWindow / Math.max(1, sliceBytes)));
+        // The pixels of the slices in flight are kept alive only until encoded
+        final Semaphore permits = new Semaphore(inFlight);
+        for(int k0 = 0; k0 < sliceCount && failure.get() == null; k0 += windowSlices)
+        {
+            int count = Math.min(windowSlices, sliceCount - k0);
+            long windowPosition = dataByteOffset + (long)k0 * (long)sliceBytes;
+            final MappedByteBuffer map = channel.map(
+                FileChannel.MapMode.READ_WRITE, windowPosition, (long)count * (long)sliceBytes);
+            for(int i = 0; i < count && failure.get() == null; i++)
+            {
+                permits.acquire();
+                final int k = k0 + i;
+                final Object pixels = src.fetch(k);
+                final int start = i * sliceBytes;
+                pool.execute(new SliceTask(k) {
+                    void process() throws IOException
+                    {
+                        ByteBuffer out = map.duplicate();
+                        ((Buffer)out).position(start);
+                        ((Buffer)out).limit(start + sliceBytes);
+                        src.encode(k, pixels, out.slice().order(ByteOrder.LITTLE_ENDIAN));
+                    }
+
+                    void release() { permits.release(); }
+                });
+            }
+            // Window is flushed when all its slices are encoded
+            permits.acquire(inFlight);
+            permits.release(inFlight);
+            map.force();
+        }
+    }
+
+    private void rethrowFailure() throws IOException
+    {
+        Throwable e = failure.get();
+        if(e instanceof IOException)
+        {
+            throw(IOException) e;
+        } else if(e instanceof InterruptedException)
+        {
+            throw new InterruptedIOException("Writing of the slices was interrupted");
+        } else if(e instanceof RuntimeException)
+        {
+            throw(RuntimeException) e;
+        } else if(e != null)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Task processing one slice, the first failure is recorded and the remaining tasks are
+     * skipped.
+     */
+    abstract class SliceTask implements Runnable
+    {
+        final int k;
+
+        SliceTask(int k) { this.k = k; }
+
+        abstract void process() throws IOException;
+
+        abstract void release();
+
+        public void run()
+        {
+            try
+            {
+                if(failure.get() != null)
+                {
+                    return;
+                }
+                Object event = DenIoEvents.begin(DenIoEvents.SLICE_WRITE);
+                process();
+                DenIoEvents.end(event, eventFile, k, sliceBytes, eventType, true);
+                IJ.showProgress(done.incrementAndGet(), sliceCount);
+            } catch(Throwable e)
+            {
+                failure.compareAndSet(null, e);
+            } finally
+            {
+                release();
+            }
+        }
+    }
+}
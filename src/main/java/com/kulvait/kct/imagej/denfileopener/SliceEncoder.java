@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Encodes ImageJ pixel arrays to little endian DEN elements
+ * Optionally the values are mapped by stored = (value - offset) * scale and quantized to
+ * the integer types by truncation, rounding or dithering.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+public class SliceEncoder
+{
+    public enum Rounding { TRUNCATE, ROUND, DITHER }
+
+    DenDataType type;
+    double scale;
+    double offset;
+    Rounding rounding;
+
+    public SliceEncoder(DenDataType type)
+    {
+        this.type = type;
+        this.scale = 1.0;
+        this.offset = 0.0;
+        this.rounding = Rounding.ROUND;
+    }
+
+    public DenDataType getType() { return type; }
+
+    public void setScaleOffset(double scale, double offset)
+    {
+        this.scale = scale;
+        this.offset = offset;
+    }
+
+    /**
+     * Maps the range [min, max] linearly to the full range of the integer type, for floating
+     * point types the values are stored unchanged.
+     */
+    public void setLinearRange(double min, double max)
+    {
+        if(isIntegerType() && max > min)
+        {
+            double scale = (maxValue() - minValue()) / (max - min);
+            setScaleOffset(scale, min - minValue() / scale);
+        }
+    }
+
+    public double getScale() { return scale; }
+
+    public double getOffset() { return offset; }
+
+    public void setRounding(Rounding rounding) { this.rounding = rounding; }
+
+    public boolean isIdentity() { return scale == 1.0 && offset == 0.0; }
+
+    public boolean isIntegerType()
+    {
+        return type == DenDataType.UINT8 || type == DenDataType.UINT16
+            || type == DenDataType.UINT32 || type == DenDataType.INT16;
+    }
+
+    double minValue() { return type == DenDataType.INT16 ? -32768.0 : 0.0; }
+
+    double maxValue()
+    {
+        switch(type)
+        {
+        case UINT8:
+            return 255.0;
+        case UINT16:
+            return 65535.0;
+        case UINT32:
+            return 4294967295.0;
+        case INT16:
+            return 32767.0;
+        default:
+            return Double.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Returns the type in which the pixel array is stored without conversion.
+     */
+    public static DenDataType nativeType(Object pixels)
+    {
+        if(pixels instanceof byte[])
+        {
+            return DenDataType.UINT8;
+        } else if(pixels instanceof short[])
+        {
+            return DenDataType.UINT16;
+        } else if(pixels instanceof float[])
+        {
+            return DenDataType.FLOAT32;
+        } else if(pixels instanceof double[])
+        {
+            return DenDataType.FLOAT64;
+        } else
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Encodes the slice into the little endian buffer and advances its position, k is the index
+     * of the slice used to seed the dithering so that the output is reproducible.
+     */
+    public void encode(Object pixels, ByteBuffer out, int k) throws IOException
+    {
+        if(isIdentity() && nativeType(pixels) == type)
+        {
+            switch(type)
+            {
+            case UINT8:
+                out.put((byte[])pixels);
+                return;
+            case UINT16:
+                out.asShortBuffer().put((short[])pixels);
+                ((Buffer)out).position(out.position() + 2 * ((short[])pixels).length);
+                return;
+            case FLOAT32:
+                out.asFloatBuffer().put((float[])pixels);
+                ((Buffer)out).position(out.position() + 4 * ((float[])pixels).length);
+                return;
+            case FLOAT64:
+                out.asDoubleBuffer().put((double[])pixels);
+                ((Buffer)out).position(out.position() + 8 * ((double[])pixels).length);
+                return;
+            default:
+                break;
+            }
+        }
+        int len = pixelCount(pixels);
+        double min = minValue();
+        double max = maxValue();
+        long seed = 0x9E3779B97F4A7C15L * (k + 1);
+        for(int i = 0; i != len; i++)
+        {
+            double v = (value(pixels, i) - offset) * scale;
+            switch(type)
+            {
+            case FLOAT32:
+                out.putFloat((float)v);
+                continue;
+            case FLOAT64:
+                out.putDouble(v);
+                continue;
+            default:
+                break;
+            }
+            if(rounding == Rounding.ROUND)
+            {
+                v = v + 0.5;
+            } else if(rounding == Rounding.DITHER)
+            {
+                // xorshift64 to get uniform noise in [0, 1)
+                seed ^= seed << 13;
+                seed ^= seed >>> 7;
+                seed ^= seed << 17;
+                v = v + (double)(seed >>> 11) * 0x1.0p-53;
+            }
+            // NaN maps to zero
+            if(v != v)
+            {
+                v = 0.0;
+            } else if(v < min)
+            {
+                v = min;
+            } else if(v > max)
+            {
+                v = max;
+            }
+            long q = (long)Math.floor(v);
+            switch(type)
+            {
+            case UINT8:
+                out.put((byte)q);
+                break;
+            case UINT16:
+            case INT16:
+                out.putShort((short)q);
+                break;
+            case UINT32:
+                out.putInt((int)q);
+                break;
+            default:
+                throw new IOException(
+                    String.format("The type %s is not implemented yet!", type.name()));
+            }
+        }
+    }
+
+    static int pixelCount(Object pixels) throws IOException
+    {
+        if(pixels instanceof byte[])
+        {
+            return ((byte[])pixels).length;
+        } else if(pixels instanceof short[])
+        {
+            return ((short[])pixels).length;
+        } else if(pixels instanceof float[])
+        {
+            return ((float[])pixels).length;
+        } else if(pixels instanceof double[])
+        {
+            return ((double[])pixels).length;
+        } else
+        {
+            throw new IOException("Unsupported pixel array");
+        }
+    }
+
+    static double value(Object pixels, int i)
+    {
+        if(pixels instanceof float[])
+        {
+            return ((float[])pixels)[i];
+        } else if(pixels instanceof short[])
+        {
+            return ((short[])pixels)[i] & 0xffff;
+        } else if(pixels instanceof byte[])
+        {
+            return ((byte[])pixels)[i] & 0xff;
+        } else
+        {
+            return ((double[])pixels)[i];
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Streaming histogram of the stack values to estimate percentiles
+ * Values are binned by the upper 20 bits of their order preserving float representation,
+ * so that a single pass over the stack is sufficient without knowing its range. The relative
+ * precision of the percentile is 2^-11.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class StackHistogram
+{
+    static final int SHIFT = 12;
+    static final int BINS = 1 << (32 - SHIFT);
+
+    long[] counts;
+
+    public StackHistogram() { counts = new long[BINS]; }
+
+    static int bin(float v)
+    {
+        int bits = Float.floatToRawIntBits(v);
+        int key = bits < 0 ? ~bits : bits ^ 0x80000000;
+        return key >>> SHIFT;
+    }
+
+    static float binCenter(int b)
+    {
+        int key = (b << SHIFT) | (1 << (SHIFT - 1));
+        int bits = key < 0 ? key ^ 0x80000000 : ~key;
+        return Float.intBitsToFloat(bits);
+    }
+
+    void add(Object pixels) throws IOException
+    {
+        int len = SliceEncoder.pixelCount(pixels);
+        if(pixels instanceof float[])
+        {
+            float[] p = (float[])pixels;
+            for(int i = 0; i != len; i++)
+            {
+                if(p[i] == p[i])
+                {
+                    counts[bin(p[i])]++;
+                }
+            }
+        } else
+        {
+            for(int i = 0; i != len; i++)
+            {
+                float v = (float)SliceEncoder.value(pixels, i);
+                if(v == v)
+                {
+                    counts[bin(v)]++;
+                }
+            }
+        }
+    }
+
+    void merge(StackHistogram h)
+    {
+        for(int i = 0; i != BINS; i++)
+        {
+            counts[i] += h.counts[i];
+        }
+    }
+
+    /**
+     * Value below which there is given percentage of the non NaN values.
+     */
+    public double percentile(double percent)
+    {
+        long n = 0;
+        for(int i = 0; i != BINS; i++)
+        {
+            n += counts[i];
+        }
+        long target = (long)Math.ceil(percent / 100.0 * n);
+        long cumulative = 0;
+        for(int i = 0; i != BINS; i++)
+        {
+            cumulative += counts[i];
+            if(counts[i] != 0 && cumulative >= target)
+            {
+                return binCenter(i);
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Builds the histogram of the whole stack in one pass, the slices are read sequentially
+     * and binned on Prefs.getThreads() threads into the partial histograms.
+     */
+    public static StackHistogram of(final ImageStack stack) throws IOException
+    {
+        int threads = Prefs.getThreads();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final Semaphore permits = new Semaphore(2 * threads);
+        List<Future<StackHistogram>> partial = new ArrayList<Future<StackHistogram>>();
+        final ArrayList<StackHistogram> free = new ArrayList<StackHistogram>();
+        int n = stack.getSize();
+        try
+        {
+            for(int k = 0; k != n; k++)
+            {
+                IJ.showStatus(String.format("Histogram %d/%d", k + 1, n));
+                permits.acquire();
+                final Object pixels = DenFileWritter.slicePixels(stack, k + 1);
+                partial.add(pool.submit(new Callable<StackHistogram>() {
+                    public StackHistogram call() throws IOException
+                    {
+                        StackHistogram h;
+                        synchronized(free)
+                        {
+                            h = free.isEmpty() ? new StackHistogram()
+                                               : free.remove(free.size() - 1);
+                        }
+                        try
+                        {
+                            h.add(pixels);
+                        } finally
+                        {
+                            synchronized(free)
+                            {
+                                free.add(h);
+                            }
+                            permits.release();
+                        }
+                        return h;
+                    }
+                }));
+                IJ.showProgress(k + 1, n);
+            }
+            for(Future<StackHistogram> f : partial)
+            {
+                f.get();
+            }
+        } catch(InterruptedException e)
+        {
+            throw new IOException(e);
+        } catch(ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        } finally
+        {
+            pool.shutdownNow();
+        }
+        // Each partial histogram is one of the reused accumulators
+        StackHistogram result = new StackHistogram();
+        for(StackHistogram h : free)
+        {
+            result.merge(h);
+        }
+        return result;
+    }
+}
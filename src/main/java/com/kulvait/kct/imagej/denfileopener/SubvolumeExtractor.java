@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Extracts the subvolume of x-major DEN or DAT into the new DEN
+ * Only the byte ranges of the rows of the region are read and the elements are copied
+ * without conversion. Contiguous ranges and wide rows are moved by FileChannel.transferTo,
+ * narrow rows are gathered into the output slice by positional reads of their segments.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import com.kulvait.kct.imagej.denfileopener.dat.DatFileInfo;
+import ij.IJ;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class SubvolumeExtractor
+{
+    // Rows shorter than this are gathered into the slice instead of separate transfers
+    static final int MIN_TRANSFER_ROW = 64 * 1024;
+    static final long MAX_SLICE = 256L * 1024L * 1024L;
+
+    File source;
+    DenDataType type;
+    long dataByteOffset;
+    long[] dims;
+    int dimx, dimy;
+    long dimz;
+    int elementSize;
+    int x0, x1, y0, y1;
+    long z0, z1;
+    int stride;
+
+    /**
+     * Opens DAT when it is detected by DenFormatDetector and DEN otherwise.
+     */
+    public SubvolumeExtractor(File source) throws IOException
+    {
+        this.source = source;
+        boolean xmajor;
+        int dimcount;
+        if(DenFormatDetector.isDAT(source))
+        {
+            DatFileInfo inf = new DatFileInfo(source);
+            if(!inf.isValidDAT())
+            {
+                throw new IOException(String.format("File %s is not valid DAT!", source.getName()));
+            }
+            type = inf.getElementType();
+            dataByteOffset = inf.getDataByteOffset();
+            dimcount = inf.getDIMCOUNT();
+            dims = new long[dimcount];
+            for(int i = 0; i != dimcount; i++)
+            {
+                dims[i] = inf.getDim(i);
+            }
+            xmajor = inf.isXmajor();
+        } else
+        {
+            DenFileInfo inf = new DenFileInfo(source);
+            if(!inf.isValidDEN())
+            {
+                throw new IOException(String.format("File %s is not valid DEN!", source.getName()));
+            }
+            type = inf.getElementType();
+            dataByteOffset = inf.getDataByteOffset();
+            dimcount = inf.getDIMCOUNT();
+            dims = new long[dimcount];
+            for(int i = 0; i != dimcount; i++)
+            {
+                dims[i] = inf.getDim(i);
+            }
+            xmajor = inf.isXmajor();
+        }
+        if(!xmajor)
+        {
+            throw new IOException(
+                String.format("Subvolume of y-major %s is not supported.", source.getName()));
+        }
+        dimx = dimcount > 0 ? (int)dims[0] : 0;
+        dimy = dimcount > 1 ? (int)dims[1] : 1;
+        dimz = dimcount > 0 ? 1 : 0;
+        for(int i = 2; i < dimcount; i++)
+        {
+            dimz *= dims[i];
+        }
+        elementSize = type.getSize();
+        setRange(0, dimx, 0, dimy, 0, dimz);
+        stride = 1;
+    }
+
+    /**
+     * Half open ranges of the region, they are clipped to the extent of the source.
+     */
+    public void setRange(int x0, int x1, int y0, int y1, long z0, long z1)
+    {
+        this.x0 = Math.max(0, x0);
+        this.x1 = Math.min(dimx, x1);
+        this.y0 = Math.max(0, y0);
+        this.y1 = Math.min(dimy, y1);
+        this.z0 = Math.max(0, z0);
+        this.z1 = Math.min(dimz, z1);
+    }
+
+    /**
+     * Every stride-th slice of the z range starting with z0 is extracted.
+     */
+    public void setStride(int stride) { this.stride = Math.max(1, stride); }
+
+    public int getDimx() { return dimx; }
+
+    public int getDimy() { return dimy; }
+
+    public long getDimz() { return dimz; }
+
+    public long[] getOutputDims()
+    {
+        long nz = z1 > z0 ? (z1 - z0 + stride - 1) / stride : 0;
+        return new long[] { Math.max(0, x1 - x0), Math.max(0, y1 - y0), nz };
+    }
+
+    /**
+     * Writes the region to the extended DEN of the source type and returns the number of bytes
+     * of its payload.
+     */
+    public long extract(File out) throws IOException
+    {
+        long[] outDims = getOutputDims();
+        if(outDims[0] == 0 || outDims[1] == 0 || outDims[2] == 0)
+        {
+            throw new IOException("Empty subvolume of " + source.getName());
+        }
+        int w = (int)outDims[0];
+        int h = (int)outDims[1];
+        long nz = outDims[2];
+        long rowBytes = (long)w * elementSize;
+        long sourceRowBytes = (long)dimx * elementSize;
+        long sourceSliceBytes = sourceRowBytes * dimy;
+        long outSliceBytes = rowBytes * h;
+        FileChannel input = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+        try
+        {
+            raf.setLength(0);
+            FileChannel output = raf.getChannel();
+            DenFileWritter.writeImageHeader(output, type, outDims);
+            if(w == dimx && h == dimy && stride == 1)
+            {
+                // Whole slices, the range is contiguous
+                DenFileWritter.transferRange(input, dataByteOffset + z0 * sourceSliceBytes,
+                                             nz * sourceSliceBytes, output, 4096);
+                return nz * sourceSliceBytes;
+            }
+            ByteBuffer slice = null;
+            if(w != dimx && rowBytes < MIN_TRANSFER_ROW && outSliceBytes <= MAX_SLICE)
+            {
+                slice = ByteBuffer.allocateDirect((int)outSliceBytes);
+            }
+            for(long k = 0; k != nz; k++)
+            {
+                long z = z0 + k * stride;
+                long rowPosition = dataByteOffset + z * sourceSliceBytes
+                    + (long)y0 * sourceRowBytes + (long)x0 * elementSize;
+                long outPosition = 4096 + k * outSliceBytes;
+                if(w == dimx)
+                {
+                    // Rows y0 to y1 of the slice are contiguous
+                    DenFileWritter.transferRange(input, rowPosition, outSliceBytes, output,
+                                                 outPosition, false);
+                } else if(slice == null)
+                {
+                    for(int y = 0; y != h; y++)
+                    {
+                        DenFileWritter.transferRange(input, rowPosition + y * sourceRowBytes,
+                                                     rowBytes, output,
+                                                     outPosition + y * rowBytes, false);
+                    }
+                } else
+                {
+                    // Only the segments x0 to x1 of the rows are read
+                    for(int y = 0; y != h; y++)
+                    {
+                        ((Buffer)slice).limit((int)((y + 1) * rowBytes));
+                        ((Buffer)slice).position((int)(y * rowBytes));
+                        DenIoBackend.readFully(input, slice, rowPosition + y * sourceRowBytes);
+                    }
+                    ((Buffer)slice).clear();
+                    long p = outPosition;
+                    while(slice.hasRemaining())
+                    {
+                        p += output.write(slice, p);
+                    }
+                }
+                IJ.showProgress((int)(k + 1), (int)nz);
+            }
+            return nz * outSliceBytes;
+        } finally
+        {
+            raf.close();
+            input.close();
+        }
+    }
+}
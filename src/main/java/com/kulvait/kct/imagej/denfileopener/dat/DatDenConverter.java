@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Converts between DAT and x-major DEN without decoding the data
+ * Both formats store little endian x-major arrays after the header, so only the header is
+ * rewritten and the payload is moved by FileChannel.transferTo.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener.dat;
+
+import com.kulvait.kct.imagej.denfileopener.DenFileInfo;
+import com.kulvait.kct.imagej.denfileopener.DenFileWritter;
+import ij.IJ;
+import ij.Prefs;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+import java.awt.EventQueue;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.JFileChooser;
+
+public class DatDenConverter implements PlugIn
+{
+    static private String directory;
+    private List<File> files;
+
+    /**
+     * The argument dat2den converts the selected DAT files to DEN and den2dat the DEN files to
+     * DAT, the output is written next to the input with the other extension.
+     */
+    public void run(String arg)
+    {
+        final boolean toDen = arg.equals("dat2den");
+        if(!openFilesDialog(toDen ? "Convert DAT to DEN ..." : "Convert DEN to DAT ..."))
+        {
+            return;
+        }
+        for(int i = 0; i != files.size(); i++)
+        {
+            File in = files.get(i);
+            File out = targetFile(in, toDen ? ".den" : ".dat");
+            if(out.exists())
+            {
+                IJ.log(String.format("Skipping %s, %s exists", in.getName(), out.getName()));
+                continue;
+            }
+            IJ.showStatus(String.format("Converting %d/%d %s", i + 1, files.size(),
+                                        in.getName()));
+            try
+            {
+                long start = System.nanoTime();
+                if(toDen)
+                {
+                    datToDen(in, out);
+                } else
+                {
+                    denToDat(in, out);
+                }
+                double s = (System.nanoTime() - start) * 1e-9;
+                double mb = out.length() / (1024.0 * 1024.0);
+                IJ.log(String.format("%s -> %s: %.1f MB in %.2f s (%.1f MB/s)", in.getName(),
+                                     out.getName(), mb, s, mb / s));
+            } catch(IOException e)
+            {
+                IJ.log(String.format("Converting %s failed: %s", in.getName(), e.toString()));
+            }
+        }
+    }
+
+    boolean openFilesDialog(final String title)
+    {
+        files = null;
+        try
+        {
+            EventQueue.invokeAndWait(new Runnable() {
+                public void run()
+                {
+                    JFileChooser fc = new JFileChooser();
+                    fc.setDialogTitle(title);
+                    fc.setMultiSelectionEnabled(true);
+                    if(directory == null)
+                    {
+                        directory = Prefs.getString(".options.denlastdir");
+                    }
+                    if(directory == null)
+                    {
+                        directory = OpenDialog.getLastDirectory();
+                    }
+                    if(directory != null)
+                    {
+                        fc.setCurrentDirectory(new File(directory));
+                    }
+                    if(fc.showOpenDialog(IJ.getInstance()) != JFileChooser.APPROVE_OPTION)
+                    {
+                        return;
+                    }
+                    files = new ArrayList<File>(Arrays.asList(fc.getSelectedFiles()));
+                    directory = fc.getCurrentDirectory().getPath() + File.separator;
+                }
+            });
+        } catch(InterruptedException e)
+        {
+            System.out.printf("%s ERROR", e.toString());
+        } catch(InvocationTargetException e)
+        {
+            System.out.printf("%s ERROR", e.toString());
+        }
+        return files != null && !files.isEmpty();
+    }
+
+    /**
+     * Sibling of the file where the extension is replaced by ext.
+     */
+    public static File targetFile(File in, String ext)
+    {
+        String name = in.getName();
+        int dot = name.lastIndexOf('.');
+        if(dot > 0)
+        {
+            name = name.substring(0, dot);
+        }
+        return new File(in.getAbsoluteFile().getParentFile(), name + ext);
+    }
+
+    /**
+     * Writes extended DEN with the dimensions and type of the DAT.
+     */
+    public static void datToDen(File in, File out) throws IOException
+    {
+        DatFileInfo inf = new DatFileInfo(in);
+        if(!inf.isValidDAT())
+        {
+            throw new IOException(String.format("File %s is not valid DAT!", in.getName()));
+        }
+        long[] dims = new long[inf.getDIMCOUNT()];
+        for(int i = 0; i != dims.length; i++)
+        {
+            dims[i] = inf.getDim(i);
+        }
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+        boolean written = false;
+        try
+        {
+            raf.setLength(0);
+            DenFileWritter.writeImageHeader(raf.getChannel(), inf.getElementType(), dims);
+            copyPayload(in, inf.getDataByteOffset(), inf.getElementSize() * inf.getElementCount(),
+                        raf.getChannel(), 4096);
+            written = true;
+        } finally
+        {
+            raf.close();
+            if(!written)
+            {
+                out.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes DAT with the dimensions and type of the x-major DEN, y-major DEN would need to be
+     * transposed.
+     */
+    public static void denToDat(File in, File out) throws IOException
+    {
+        DenFileInfo inf = new DenFileInfo(in);
+        if(!inf.isValidDEN())
+        {
+            throw new IOException(String.format("File %s is not valid DEN!", in.getName()));
+        }
+        if(!inf.isXmajor())
+        {
+            throw new IOException(
+                String.format("File %s is y-major, DAT is always x-major.", in.getName()));
+        }
+        long[] dims = new long[inf.getDIMCOUNT()];
+        for(int i = 0; i != dims.length; i++)
+        {
+            dims[i] = inf.getDim(i);
+        }
+        byte[] header = DatFileWritter.firstLine(inf.getElementType(), dims);
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+        boolean written = false;
+        try
+        {
+            raf.setLength(0);
+            ByteBuffer b = ByteBuffer.wrap(header);
+            while(b.hasRemaining())
+            {
+                raf.getChannel().write(b, b.position());
+            }
+            copyPayload(in, inf.getDataByteOffset(), inf.getElementSize() * inf.getElementCount(),
+                        raf.getChannel(), header.length);
+            written = true;
+        } finally
+        {
+            raf.close();
+            if(!written)
+            {
+                out.delete();
+            }
+        }
+    }
+
+    static void copyPayload(File in, long offset, long size, FileChannel output, long position)
+        throws IOException
+    {
+        FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+        try
+        {
+            DenFileWritter.transferRange(input, offset, size, output, position);
+        } finally
+        {
+            input.close();
+        }
+    }
+}
@@ -8,13 +8,15 @@
 package com.kulvait.kct.imagej.denfileopener.dat;
 
 import com.kulvait.kct.imagej.denfileopener.DenDataType;
+import com.kulvait.kct.imagej.denfileopener.DenIoBackend;
+import com.kulvait.kct.imagej.denfileopener.DenIoMetrics;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
@@ -40,10 +42,11 @@ public class DatFileInfo
     boolean xmajor;
     String firstLine;
 
-    DatFileInfo(File f)
+    public DatFileInfo(File f)
     {
         byteSize = f.length();
         dim = new long[16];
+        long start = System.nanoTime();
         try
         {
             RandomAccessFile df = new RandomAccessFile(f, "r");
@@ -52,10 +55,10 @@ public class DatFileInfo
                                          .onMalformedInput(CodingErrorAction.REPLACE)
                                          .onUnmappableCharacter(CodingErrorAction.REPLACE);
             FileChannel inChannel = df.getChannel();
-            MappedByteBuffer buffer
-                = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(1024, inChannel.size()));
+            ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(1024, inChannel.size()));
+            DenIoBackend.readFully(inChannel, buffer, 0);
+            ((Buffer)buffer).flip();
             buffer.order(ByteOrder.LITTLE_ENDIAN);
-            buffer.load();
             CharBuffer decodedBuffer = decoder.decode(buffer);
             char a = decodedBuffer.get();
             firstLine = "";
@@ -72,7 +75,8 @@ public class DatFileInfo
                 validDAT = false;
                 return;
             }
-            String[] fld = firstLine.split("_");
+            // Keep the trailing empty field of LF terminated lines, with CRLF it is the carriage return
+            String[] fld = firstLine.split("_", -1);
             if(fld.length < 3)
             {
                 System.out.printf(
@@ -116,8 +120,6 @@ public class DatFileInfo
                 validDAT = false;
                 return;
             }
-            System.out.printf("Openning DAT: first line %s type %s.\n", firstLine,
-                              elementType.toString());
             elementSize = elementType.getSize();
             for(int i = 0; i != DIMCOUNT; i++)
             {
@@ -143,12 +145,10 @@ public class DatFileInfo
                 dimx = dim[0]; // Height
                 dimy = dim[1]; // Width
                 dimz = dim[2];
-                System.out.printf("dimx=%d dimy=%d dimz=%d\n", dimx, dimy, dimz);
                 // Flat indexing for more than 3D arrays
                 for(int i = 3; i < DIMCOUNT; i++)
                 {
                     dimz = dimz * dim[i];
-                    System.out.printf("dimz=%d\n", dimz);
                 }
             }
             xmajor = true;
@@ -161,6 +161,7 @@ public class DatFileInfo
             if(dataByteOffset + elementSize * elementCount == byteSize)
             {
                 validDAT = true;
+                DenIoMetrics.HEADER_PARSE.since(start);
             } else
             {
                 System.out.printf(
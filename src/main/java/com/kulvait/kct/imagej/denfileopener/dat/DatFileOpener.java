@@ -9,6 +9,7 @@
 package com.kulvait.kct.imagej.denfileopener.dat;
 
 import com.kulvait.kct.imagej.denfileopener.DenDataType;
+import com.kulvait.kct.imagej.denfileopener.DenFileOpener;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.Prefs;
@@ -138,6 +139,9 @@ public class DatFileOpener implements PlugIn
         } else if(typ == DenDataType.UINT16)
         {
             fi.fileType = FileInfo.GRAY16_UNSIGNED;
+        } else if(typ == DenDataType.INT16)
+        {
+            fi.fileType = FileInfo.GRAY16_SIGNED;
         } else if(typ == DenDataType.FLOAT32)
         {
             fi.fileType = FileInfo.GRAY32_FLOAT;
@@ -163,10 +167,16 @@ public class DatFileOpener implements PlugIn
         }
         if(img != null)
         {
+            long[] dim = new long[inf.getDIMCOUNT()];
+            for(int i = 0; i != dim.length; i++)
+            {
+                dim[i] = inf.getDim(i);
+            }
+            DenFileOpener.setHyperStackDimensions(img, dim);
             if(IJ.getVersion().compareTo("1.50e") >= 0)
                 img.setIJMenuBar(true);
             img.show();
-            img.setZ((int)((inf.getDim(2) + 1) / 2));
+            img.setZ((img.getNSlices() + 1) / 2);
             img.updateAndDraw();
         }
     }
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : Writes the current image to the DAT file
+ * The first line _N_T_dim0_..._dimN-1_ is followed by the little endian x-major data, the
+ * slices are encoded and written by the same parallel engine as DEN.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener.dat;
+
+import com.kulvait.kct.imagej.denfileopener.DenDataType;
+import com.kulvait.kct.imagej.denfileopener.DenFileWritter;
+import com.kulvait.kct.imagej.denfileopener.ParallelSliceWriter;
+import com.kulvait.kct.imagej.denfileopener.SliceEncoder;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.io.FileInfo;
+import ij.io.SaveDialog;
+import ij.plugin.PlugIn;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class DatFileWritter implements PlugIn
+{
+    static final String[] OUTPUT_TYPES = { "Same as image", "F", "D", "U", "L", "I" };
+
+    private boolean mappedOutput = Prefs.getBoolean("options.datmappedoutput", false);
+    // Null for the type of the image
+    private DenDataType outputType = null;
+
+    public void run(String arg)
+    {
+        String path = arg;
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if(imp == null)
+        {
+            IJ.noImage();
+            return;
+        }
+        if(arg.equals(""))
+        {
+            SaveDialog sd = new SaveDialog("Save as DAT ...", imp.getTitle(), ".dat");
+            String name = sd.getFileName();
+            if(name == null)
+                return;
+            path = sd.getDirectory() + name;
+            if(!showOptionsDialog())
+                return;
+        }
+        imp.startTiming();
+        try
+        {
+            saveAsDAT(imp, path);
+        } catch(IOException e)
+        {
+            IJ.error("An error occured writing the file.\n \n" + e);
+        }
+        IJ.showTime(imp, imp.getStartTime(), "Dat Writter");
+    }
+
+    boolean showOptionsDialog()
+    {
+        GenericDialog gd = new GenericDialog("DAT save options");
+        gd.addCheckbox("Memory mapped output", mappedOutput);
+        gd.addChoice("Output type", OUTPUT_TYPES,
+                     Prefs.get("options.datoutputtype", OUTPUT_TYPES[0]));
+        gd.showDialog();
+        if(gd.wasCanceled())
+            return false;
+        mappedOutput = gd.getNextBoolean();
+        int typeIndex = gd.getNextChoiceIndex();
+        outputType = typeIndex == 0 ? null : typeOf(OUTPUT_TYPES[typeIndex]);
+        Prefs.set("options.datmappedoutput", mappedOutput);
+        Prefs.set("options.datoutputtype", OUTPUT_TYPES[typeIndex]);
+        return true;
+    }
+
+    public void setMappedOutput(boolean mappedOutput) { this.mappedOutput = mappedOutput; }
+
+    /**
+     * Type of the DAT elements, null to use the type of the image, 8 bit images are stored as U.
+     */
+    public void setOutputType(DenDataType outputType) { this.outputType = outputType; }
+
+    /**
+     * DenDataType of the DAT type letter or null if it is not known.
+     */
+    public static DenDataType typeOf(String code)
+    {
+        switch(code)
+        {
+        case "F":
+            return DenDataType.FLOAT32;
+        case "D":
+            return DenDataType.FLOAT64;
+        case "U":
+            return DenDataType.UINT16;
+        case "L":
+            return DenDataType.UINT32;
+        case "I":
+            return DenDataType.INT16;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * DAT type letter of the DenDataType or null if it can not be stored in DAT.
+     */
+    public static String typeCode(DenDataType type)
+    {
+        switch(type)
+        {
+        case FLOAT32:
+            return "F";
+        case FLOAT64:
+            return "D";
+        case UINT16:
+            return "U";
+        case UINT32:
+            return "L";
+        case INT16:
+            return "I";
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * First line of the DAT including its CRLF line end, DatFileInfo reads LF terminated lines as
+     * well.
+     */
+    public static byte[] firstLine(DenDataType type, long[] dims) throws IOException
+    {
+        String code = typeCode(type);
+        if(code == null)
+        {
+            throw new IOException(
+                String.format("The type %s can not be stored in DAT!", type.name()));
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append('_').append(dims.length).append('_').append(code).append('_');
+        for(long d : dims)
+        {
+            sb.append(d).append('_');
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public void saveAsDAT(ImagePlus imp, String path) throws IOException
+    {
+        FileInfo fi = imp.getFileInfo();
+        final ImageStack stack = imp.getStack();
+        DenDataType type = outputType;
+        if(type == null)
+        {
+            type = DenFileWritter.imageType(fi.fileType);
+            if(type == DenDataType.UINT8)
+            {
+                type = DenDataType.UINT16;
+            }
+        }
+        if(type == null)
+        {
+            throw new IOException("Unrecognized file format!");
+        }
+        final SliceEncoder encoder = new SliceEncoder(type);
+        byte[] header = firstLine(type, DenFileWritter.imageDims(imp, fi));
+        int sliceBytes = fi.width * fi.height * type.getSize();
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        FileChannel output = raf.getChannel();
+        try
+        {
+            raf.setLength(0);
+            ByteBuffer b = ByteBuffer.wrap(header);
+            while(b.hasRemaining())
+            {
+                output.write(b, b.position());
+            }
+            ParallelSliceWriter w
+                = new ParallelSliceWriter(output, header.length, sliceBytes, fi.nImages);
+            w.setMappedOutput(mappedOutput);
+            IJ.showStatus(String.format("Writing %d slices using %d threads", fi.nImages,
+                                        w.getThreads()));
+            w.write(new ParallelSliceWriter.SliceSource() {
+                public Object fetch(int k) { return DenFileWritter.slicePixels(stack, k + 1); }
+
+                public void encode(int k, Object pixels, ByteBuffer out) throws IOException
+                {
+                    encoder.encode(pixels, out, k);
+                }
+            });
+        } finally
+        {
+            output.close();
+            raf.close();
+        }
+    }
+}
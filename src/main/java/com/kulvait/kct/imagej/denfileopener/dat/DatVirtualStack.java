@@ -12,13 +12,19 @@ package com.kulvait.kct.imagej.denfileopener.dat;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteOrder;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import com.kulvait.kct.imagej.denfileopener.CachedFloatProcessor;
 import com.kulvait.kct.imagej.denfileopener.DenDataType;
+import com.kulvait.kct.imagej.denfileopener.DenDiskCache;
+import com.kulvait.kct.imagej.denfileopener.DenFileRegistry;
+import com.kulvait.kct.imagej.denfileopener.DenIoBackend;
+import com.kulvait.kct.imagej.denfileopener.DenIoEvents;
+import com.kulvait.kct.imagej.denfileopener.DenIoMetrics;
+import com.kulvait.kct.imagej.denfileopener.DisplayFrameCache;
 
 import ij.ImageStack;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 // Ideas based on
@@ -32,12 +38,15 @@ public class DatVirtualStack extends ImageStack
     DatFileInfo inf;
     RandomAccessFile df;
     FileChannel inChannel;
+    DenIoBackend backend;
+    DenDiskCache.Volume diskCache;
     int dimx, dimy, dimz;
     int dimImg;
     DenDataType typ;
     float[] pixelArray;
+    DisplayFrameCache frames;
 
-    DatVirtualStack(File f) throws IOException
+    public DatVirtualStack(File f) throws IOException
     {
         this.f = f;
         this.inf = new DatFileInfo(f);
@@ -48,6 +57,8 @@ public class DatVirtualStack extends ImageStack
 
         this.df = new RandomAccessFile(f, "r");
         inChannel = df.getChannel();
+        // Closes the stack with its last window
+        DenFileRegistry.listen();
 
         // Supports fast access, if from undefined dimension these are ones
         dimx = (int)inf.getDimx();
@@ -56,6 +67,16 @@ public class DatVirtualStack extends ImageStack
         dimImg = dimx * dimy;
         typ = inf.getElementType();
         pixelArray = new float[dimImg];
+        frames = new DisplayFrameCache();
+        try
+        {
+            backend = DenIoBackend.open(f, inChannel, inf.getElementSize() * (long)dimImg);
+        } catch(IOException e)
+        {
+            close();
+            throw e;
+        }
+        diskCache = DenDiskCache.forFile(f);
     }
 
     /**
@@ -84,18 +105,8 @@ public class DatVirtualStack extends ImageStack
     // 1 based n
     public ImageProcessor getProcessor(int n)
     {
-        FloatProcessor fp = new FloatProcessor(dimx, dimy);
-        getPixels(n);
-        int index;
-        for(int y = 0; y != dimy; y++)
-        {
-            for(int x = 0; x != dimx; x++)
-            {
-                index = y * dimx + x;
-                fp.setf(x, y, pixelArray[index]);
-            }
-        }
-        return fp;
+        float[] pixels = ((float[])getPixels(n)).clone();
+        return new CachedFloatProcessor(dimx, dimy, pixels, frames, n);
     }
 
     public Object getPixels(int n)
@@ -106,12 +117,26 @@ public class DatVirtualStack extends ImageStack
                 String.format("Illegal acces to the slice %d/%d", n - 1, dimz));
         }
         long pos = inf.getDataByteOffset() + inf.getElementSize() * (long)(n - 1) * (long)dimImg;
-        MappedByteBuffer buf;
+        long sliceBytes = inf.getElementSize() * dimImg;
+        long start = System.nanoTime();
+        Object event = DenIoEvents.begin(DenIoEvents.SLICE_READ);
+        ByteBuffer buf = null;
+        boolean cached = false;
         try
         {
-            buf = inChannel.map(FileChannel.MapMode.READ_ONLY, pos, inf.getElementSize() * dimImg);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
-            buf.load();
+            if(diskCache != null)
+            {
+                buf = diskCache.get(n, (int)sliceBytes);
+                cached = buf != null;
+            }
+            if(!cached)
+            {
+                buf = readSlice(n, pos, sliceBytes, start);
+                if(diskCache != null)
+                {
+                    diskCache.put(n, buf);
+                }
+            }
             float f;
             long val_lng;
             int val_int;
@@ -133,6 +158,9 @@ public class DatVirtualStack extends ImageStack
                         {
                             val_int = buf.getShort() & 0xffff;
                             f = (float)val_int;
+                        } else if(typ == DenDataType.INT16)
+                        {
+                            f = (float)buf.getShort();
                         } else if(typ == DenDataType.FLOAT32)
                         {
                             f = buf.getFloat();
@@ -166,6 +194,9 @@ public class DatVirtualStack extends ImageStack
                         {
                             val_int = buf.getShort() & 0xffff;
                             f = (float)val_int;
+                        } else if(typ == DenDataType.INT16)
+                        {
+                            f = (float)buf.getShort();
                         } else if(typ == DenDataType.FLOAT32)
                         {
                             f = buf.getFloat();
@@ -185,16 +216,42 @@ public class DatVirtualStack extends ImageStack
                     }
                 }
             }
-
+            DenIoEvents.end(event, this.f, n - 1, sliceBytes, typ, xmajor);
+            DenIoMetrics.SLICE_DECODE.since(start);
+            DenIoMetrics.BYTES_READ.add(sliceBytes);
             return pixelArray;
         } catch(IOException e)
         {
             e.printStackTrace();
             throw new RuntimeException(
                 String.format("Can not map buffer of the slice %d/%d", n - 1, dimz));
+        } finally
+        {
+            if(cached)
+            {
+                diskCache.release(buf);
+            } else if(buf != null)
+            {
+                backend.release(buf);
+            }
         }
     }
 
+    ByteBuffer readSlice(int n, long pos, long sliceBytes, long start) throws IOException
+    {
+        if(!backend.isMapped())
+        {
+            return backend.read(pos, (int)sliceBytes);
+        }
+        Object mapping = DenIoEvents.begin(DenIoEvents.MAPPING);
+        ByteBuffer buf = backend.read(pos, (int)sliceBytes);
+        DenIoEvents.end(mapping, this.f, n - 1, sliceBytes, typ, true);
+        DenIoMetrics.MAPPING.since(start);
+        DenIoMetrics.BYTES_MAPPED.add(sliceBytes);
+        ((MappedByteBuffer)buf).load();
+        return buf;
+    }
+
     /**
      * 8=byte, 16=short, 24=RGB, 32=float
      *
@@ -213,7 +270,7 @@ public class DatVirtualStack extends ImageStack
         } else if(typ == DenDataType.FLOAT64)
         {
             return 32;
-        } else if(typ == DenDataType.UINT32)
+        } else if(typ == DenDataType.UINT32 || typ == DenDataType.INT16)
         {
             return 32;
         } else
@@ -232,4 +289,17 @@ public class DatVirtualStack extends ImageStack
     public String getSliceLabel(int n) { return String.format("z=%d", n - 1, (int)inf.getDim(2)); }
 
     public boolean isVirtual() { return true; }
+
+    /**
+     * Closes the underlying file, the stack can not be read afterwards.
+     */
+    public void close() throws IOException
+    {
+        if(backend != null)
+        {
+            backend.close();
+        }
+        inChannel.close();
+        df.close();
+    }
 }
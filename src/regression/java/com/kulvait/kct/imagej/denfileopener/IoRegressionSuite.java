@@ -0,0 +1,735 @@
+/*******************************************************************************
+ * Project : KCT ImageJ plugin to open DEN files
+ * Author: Vojtěch Kulvait
+ * Licence: GNU GPL3
+ * Description : End-to-end I/O throughput regression suite on GB sized DEN files
+ * A synthetic or sparse DEN is generated on the local disk and driven headlessly through the
+ * opener, the virtual stack, the stack histogram and the writer. Each phase is measured cold,
+ * after the page cache is dropped, and warm. Throughput, slice latency percentiles and the peak
+ * heap and off-heap use are reported and the throughput is compared to the stored baseline.
+ * Date: 2023
+ ******************************************************************************/
+package com.kulvait.kct.imagej.denfileopener;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.macro.Interpreter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class IoRegressionSuite
+{
+    static final File DROP_CACHES = new File("/proc/sys/vm/drop_caches");
+    static final String[] PHASES
+        = { "open", "sequential", "random", "histogram", "save", "convert" };
+
+    File directory;
+    long size;
+    int dim;
+    DenDataType type;
+    int randomSlices;
+    boolean sparse;
+    boolean keep;
+    boolean cold;
+    boolean update;
+    double tolerance;
+    File baseline;
+    File result;
+
+    File file;
+    int dimz;
+    long sliceBytes;
+    List<Phase> phases;
+
+    public IoRegressionSuite()
+    {
+        directory = new File(System.getProperty("java.io.tmpdir"));
+        size = 4L * 1024L * 1024L * 1024L;
+        dim = 2048;
+        type = DenDataType.FLOAT32;
+        randomSlices = 256;
+        cold = true;
+        tolerance = 0.25;
+        baseline = new File(System.getProperty("user.home"), ".kct-iosuite-baseline.properties");
+        phases = new ArrayList<Phase>();
+    }
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        IoRegressionSuite suite;
+        try
+        {
+            suite = parseArguments(args);
+        } catch(IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+            return;
+        }
+        int regressions;
+        try
+        {
+            regressions = suite.run();
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(3);
+            return;
+        }
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    static void usage()
+    {
+        System.err.println(
+            "Usage: java -cp ij.jar:KCT_Den_File_Opener.jar:regression-classes "
+            + "com.kulvait.kct.imagej.denfileopener.IoRegressionSuite [options]\n"
+            + "Options:\n"
+            + "    --dir DIR        Directory of the generated file, default java.io.tmpdir\n"
+            + "    --size GB        Payload size of the generated file, default 4\n"
+            + "    --dim N          Slices are N x N, default 2048\n"
+            + "    --type T         UINT8, UINT16, UINT32, FLOAT32 or FLOAT64, default FLOAT32\n"
+            + "    --random N       Number of randomly accessed slices, default 256\n"
+            + "    --sparse         Sparse file of zeros instead of the synthetic pattern\n"
+            + "    --keep           Keep the generated file for the next run\n"
+            + "    --no-cold        Skip the cold runs\n"
+            + "    --baseline FILE  Stored throughput, default ~/.kct-iosuite-baseline.properties\n"
+            + "    --tolerance F    Allowed relative throughput drop, default 0.25\n"
+            + "    --update         Store the results as the new baseline\n"
+            + "    --result FILE    JSON report of the results\n"
+            + "Cold runs drop the page cache by /proc/sys/vm/drop_caches, which requires root.\n"
+            + "The exit code is 1 when the throughput of a phase regressed.");
+    }
+
+    static IoRegressionSuite parseArguments(String[] args)
+    {
+        IoRegressionSuite s = new IoRegressionSuite();
+        try
+        {
+            for(int i = 0; i < args.length; i++)
+            {
+                String a = args[i];
+                if(a.equals("--sparse"))
+                {
+                    s.sparse = true;
+                } else if(a.equals("--keep"))
+                {
+                    s.keep = true;
+                } else if(a.equals("--no-cold"))
+                {
+                    s.cold = false;
+                } else if(a.equals("--update"))
+                {
+                    s.update = true;
+                } else if(i + 1 == args.length)
+                {
+                    throw new IllegalArgumentException("Missing value of " + a);
+                } else if(a.equals("--dir"))
+                {
+                    s.directory = new File(args[++i]);
+                } else if(a.equals("--size"))
+                {
+                    s.size = (long)(Double.parseDouble(args[++i]) * 1024L * 1024L * 1024L);
+                } else if(a.equals("--dim"))
+                {
+                    s.dim = Math.max(1, Integer.parseInt(args[++i]));
+                } else if(a.equals("--type"))
+                {
+                    s.type = DenDataType.valueOf(args[++i]);
+                } else if(a.equals("--random"))
+                {
+                    s.randomSlices = Math.max(1, Integer.parseInt(args[++i]));
+                } else if(a.equals("--baseline"))
+                {
+                    s.baseline = new File(args[++i]);
+                } else if(a.equals("--tolerance"))
+                {
+                    s.tolerance = Double.parseDouble(args[++i]);
+                } else if(a.equals("--result"))
+                {
+                    s.result = new File(args[++i]);
+                } else
+                {
+                    throw new IllegalArgumentException("Unknown option " + a);
+                }
+            }
+        } catch(NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid number " + e.getMessage());
+        }
+        if(s.type == DenDataType.INT16 || s.type == DenDataType.INT32
+           || s.type == DenDataType.INT64 || s.type == DenDataType.UINT64)
+        {
+            throw new IllegalArgumentException("Virtual stack does not read " + s.type.name());
+        }
+        return s;
+    }
+
+    /**
+     * Measurement of one phase, the latencies are of the individual slices in nanoseconds.
+     */
+    static class Phase
+    {
+        String name;
+        String mode;
+        long bytes;
+        long nanos;
+        long[] latencies;
+        int count;
+        long peakHeap;
+        long peakOffHeap;
+
+        Phase(String name, String mode)
+        {
+            this.name = name;
+            this.mode = mode;
+            latencies = new long[64];
+        }
+
+        void slice(long nanos)
+        {
+            if(count == latencies.length)
+            {
+                latencies = Arrays.copyOf(latencies, 2 * count);
+            }
+            latencies[count++] = nanos;
+        }
+
+        String key() { return name + "." + mode; }
+
+        /**
+         * MB/s or NaN for the phases without payload.
+         */
+        double throughput()
+        {
+            return bytes == 0 ? Double.NaN : (bytes / (1024.0 * 1024.0)) / (nanos * 1e-9);
+        }
+
+        /**
+         * Slice latency percentile in milliseconds or NaN.
+         */
+        double latency(double percent)
+        {
+            if(count == 0)
+            {
+                return Double.NaN;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int i = (int)Math.ceil(percent / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, i))] * 1e-6;
+        }
+    }
+
+    /**
+     * Samples the used heap and the direct and mapped buffers, which are the off-heap memory of
+     * the stacks, a pool peak would miss the mapped windows.
+     */
+    static class MemorySampler implements Runnable
+    {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        List<BufferPoolMXBean> buffers
+            = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+        ScheduledExecutorService timer;
+        volatile long peakHeap;
+        volatile long peakOffHeap;
+
+        MemorySampler()
+        {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "iosuite-memory");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timer.scheduleAtFixedRate(this, 0, 5, TimeUnit.MILLISECONDS);
+        }
+
+        public synchronized void run()
+        {
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+            long offHeap = 0;
+            for(BufferPoolMXBean b : buffers)
+            {
+                offHeap += b.getMemoryUsed();
+            }
+            peakOffHeap = Math.max(peakOffHeap, offHeap);
+        }
+
+        synchronized void reset()
+        {
+            peakHeap = 0;
+            peakOffHeap = 0;
+        }
+
+        void record(Phase p)
+        {
+            run();
+            p.peakHeap = peakHeap;
+            p.peakOffHeap = peakOffHeap;
+        }
+
+        void stop() { timer.shutdownNow(); }
+    }
+
+    /**
+     * Runs all phases and returns the number of regressions against the baseline.
+     */
+    public int run() throws Exception
+    {
+        Interpreter.batchMode = true;
+        boolean created = prepareFile();
+        if(cold && !dropCaches())
+        {
+            System.out.printf("Cold runs skipped, %s is not writable.\n", DROP_CACHES.getPath());
+            cold = false;
+        }
+        MemorySampler sampler = new MemorySampler();
+        try
+        {
+            // Class loading is not attributed to the first measured phase
+            close(open());
+            for(String name : PHASES)
+            {
+                if(cold)
+                {
+                    phases.add(measure(name, "cold", sampler));
+                }
+                phases.add(measure(name, "warm", sampler));
+            }
+        } finally
+        {
+            sampler.stop();
+            if(created && !keep)
+            {
+                file.delete();
+            }
+        }
+        report();
+        if(result != null)
+        {
+            writeJSON(result);
+        }
+        return compareToBaseline();
+    }
+
+    String configuration()
+    {
+        return String.format("%s-%dx%dx%d%s", type.name(), dim, dim, dimz,
+                             sparse ? "-sparse" : "");
+    }
+
+    /**
+     * Generates the DEN of about size bytes unless it is kept from the previous run, returns
+     * true when the file was created.
+     */
+    boolean prepareFile() throws IOException
+    {
+        sliceBytes = (long)dim * dim * type.getSize();
+        dimz = (int)Math.max(1L, Math.min(Integer.MAX_VALUE, size / sliceBytes));
+        file = new File(directory, String.format("kct-iosuite-%s.den", configuration()));
+        long length = 4096L + dimz * sliceBytes;
+        if(file.length() == length && new DenFileInfo(file).isValidDEN())
+        {
+            System.out.printf("Reusing %s\n", file.getPath());
+            return false;
+        }
+        long start = System.nanoTime();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(0);
+            FileChannel ch = raf.getChannel();
+            DenFileWritter.writeImageHeader(ch, type, new long[] { dim, dim, dimz });
+            if(sparse)
+            {
+                raf.setLength(length);
+            } else
+            {
+                writePattern(ch);
+            }
+            ch.force(false);
+        } catch(IOException e)
+        {
+            raf.close();
+            file.delete();
+            throw e;
+        }
+        raf.close();
+        System.out.printf("Generated %s of %.1f MB in %.1f s\n", file.getPath(),
+                          length / (1024.0 * 1024.0), (System.nanoTime() - start) * 1e-9);
+        return true;
+    }
+
+    /**
+     * Slices cycle through a few distinct patterns, so that the generation is limited by the
+     * disk and not by the computation of the values.
+     */
+    void writePattern(FileChannel ch) throws IOException
+    {
+        int patterns = Math.min(dimz, 8);
+        ByteBuffer[] slices = new ByteBuffer[patterns];
+        int dimImg = dim * dim;
+        for(int k = 0; k != patterns; k++)
+        {
+            ByteBuffer b
+                = ByteBuffer.allocateDirect((int)sliceBytes).order(ByteOrder.LITTLE_ENDIAN);
+            for(int i = 0; i != dimImg; i++)
+            {
+                int v = (i * 31 + k * 17) & 0xff;
+                switch(type)
+                {
+                case UINT8:
+                    b.put((byte)v);
+                    break;
+                case UINT16:
+                    b.putShort((short)(v * 101));
+                    break;
+                case UINT32:
+                    b.putInt(v * 70001);
+                    break;
+                case FLOAT32:
+                    b.putFloat(v * 0.25f - 16.0f);
+                    break;
+                default:
+                    b.putDouble(v * 0.25 - 16.0);
+                }
+            }
+            slices[k] = b;
+        }
+        long position = 4096L;
+        for(int k = 0; k != dimz; k++)
+        {
+            ByteBuffer b = slices[k % patterns];
+            ((Buffer)b).clear();
+            while(b.hasRemaining())
+            {
+                position += ch.write(b, position);
+            }
+        }
+    }
+
+    /**
+     * Drops the page cache after the dirty pages are written, false when not permitted.
+     */
+    static boolean dropCaches()
+    {
+        try
+        {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            FileOutputStream out = new FileOutputStream(DROP_CACHES);
+            try
+            {
+                out.write("1\n".getBytes("US-ASCII"));
+            } finally
+            {
+                out.close();
+            }
+            return true;
+        } catch(IOException e)
+        {
+            return false;
+        } catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Reads the whole file through the page cache, the warm runs assume it fits in memory.
+     */
+    void warmUp() throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buf = new byte[4 * 1024 * 1024];
+            while(in.read(buf) > 0)
+            {
+            }
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens the file by DenFileOpener as the ImageJ user would, in batch mode the image is not
+     * displayed.
+     */
+    ImagePlus open() throws IOException
+    {
+        new DenFileOpener().run(file.getPath());
+        ImagePlus img = Interpreter.getLastBatchModeImage();
+        if(img == null || !(img.getStack() instanceof DenVirtualStack))
+        {
+            throw new IOException(String.format("DenFileOpener did not open %s", file.getPath()));
+        }
+        return img;
+    }
+
+    /**
+     * Closes the image and collects the mapped windows of its stack, so that the pages of the
+     * file are not mapped when the page cache is dropped.
+     */
+    static void close(ImagePlus img) throws IOException
+    {
+        if(img == null)
+        {
+            return;
+        }
+        ImageStack stack = img.getStack();
+        img.close();
+        ((DenVirtualStack)stack).close();
+        System.gc();
+        System.runFinalization();
+    }
+
+    Phase measure(String name, String mode, MemorySampler sampler) throws Exception
+    {
+        Phase p = new Phase(name, mode);
+        if(mode.equals("cold"))
+        {
+            dropCaches();
+        } else
+        {
+            warmUp();
+        }
+        System.gc();
+        ImagePlus img = null;
+        File out = null;
+        try
+        {
+            if(!name.equals("open"))
+            {
+                img = open();
+            }
+            sampler.reset();
+            long start = System.nanoTime();
+            if(name.equals("open"))
+            {
+                img = open();
+            } else if(name.equals("sequential"))
+            {
+                readSlices(img.getStack(), p, sequence(dimz));
+            } else if(name.equals("random"))
+            {
+                readSlices(img.getStack(), p, randomSequence());
+            } else if(name.equals("histogram"))
+            {
+                StackHistogram.of(img.getStack());
+                p.bytes = dimz * sliceBytes;
+            } else
+            {
+                out = File.createTempFile("kct-iosuite-", ".den", directory);
+                DenFileWritter w = new DenFileWritter();
+                w.setAtomicSave(true);
+                w.setDurability(Durability.DATA);
+                if(name.equals("convert"))
+                {
+                    // Encoded slice by slice instead of the payload copy of save
+                    w.setOutputType(type == DenDataType.UINT16 ? DenDataType.FLOAT32
+                                                               : DenDataType.UINT16);
+                }
+                w.saveAsDEN(img, out.getPath());
+                DenFileInfo written = new DenFileInfo(out);
+                if(!written.isValidDEN() || written.getDimz() != dimz)
+                {
+                    throw new IOException(String.format("Phase %s did not write %s", name,
+                                                        out.getPath()));
+                }
+                p.bytes = dimz * sliceBytes + written.getElementSize() * written.getElementCount();
+            }
+            p.nanos = System.nanoTime() - start;
+            sampler.record(p);
+        } finally
+        {
+            close(img);
+            if(out != null)
+            {
+                out.delete();
+            }
+        }
+        System.out.printf("%-20s %s\n", p.key(), summary(p));
+        return p;
+    }
+
+    static int[] sequence(int n)
+    {
+        int[] s = new int[n];
+        for(int i = 0; i != n; i++)
+        {
+            s[i] = i + 1;
+        }
+        return s;
+    }
+
+    int[] randomSequence()
+    {
+        Random r = new Random(20230101L);
+        int[] s = new int[randomSlices];
+        for(int i = 0; i != s.length; i++)
+        {
+            s[i] = 1 + r.nextInt(dimz);
+        }
+        return s;
+    }
+
+    /**
+     * Slices are read as by the display of the stack, through getProcessor.
+     */
+    void readSlices(ImageStack stack, Phase p, int[] slices)
+    {
+        double sum = 0;
+        for(int n : slices)
+        {
+            long t = System.nanoTime();
+            float[] pixels = (float[])stack.getProcessor(n).getPixels();
+            p.slice(System.nanoTime() - t);
+            sum += pixels[pixels.length / 2];
+        }
+        p.bytes = slices.length * sliceBytes;
+        if(Double.isNaN(sum))
+        {
+            System.out.println("NaN in the slices");
+        }
+    }
+
+    static String summary(Phase p)
+    {
+        return String.format("%9.1f MB/s %9.1f ms p50 %8.2f ms p99 %8.2f ms heap %7.1f MB "
+                                 + "off-heap %7.1f MB",
+                             p.throughput(), p.nanos * 1e-6, p.latency(50.0), p.latency(99.0),
+                             p.peakHeap / (1024.0 * 1024.0), p.peakOffHeap / (1024.0 * 1024.0));
+    }
+
+    void report()
+    {
+        System.out.printf("\n%s, %d slices of %.1f MB in %s\n", configuration(), dimz,
+                          sliceBytes / (1024.0 * 1024.0), directory.getPath());
+        for(Phase p : phases)
+        {
+            System.out.printf("%-20s %s\n", p.key(), summary(p));
+        }
+    }
+
+    static String json(double v)
+    {
+        return Double.isNaN(v) ? "null" : String.format(Locale.ROOT, "%.3f", v);
+    }
+
+    void writeJSON(File f) throws IOException
+    {
+        File parent = f.getAbsoluteFile().getParentFile();
+        if(parent != null)
+        {
+            parent.mkdirs();
+        }
+        PrintWriter w = new PrintWriter(f, "UTF-8");
+        try
+        {
+            w.printf("{\n  \"configuration\": \"%s\",\n  \"phases\": [\n", configuration());
+            for(int i = 0; i != phases.size(); i++)
+            {
+                Phase p = phases.get(i);
+                w.printf(Locale.ROOT,
+                         "    {\"phase\": \"%s\", \"mode\": \"%s\", \"bytes\": %d, "
+                             + "\"ms\": %s, \"mbps\": %s, \"p50ms\": %s, \"p99ms\": %s, "
+                             + "\"peakHeap\": %d, \"peakOffHeap\": %d}%s\n",
+                         p.name, p.mode, p.bytes, json(p.nanos * 1e-6), json(p.throughput()),
+                         json(p.latency(50.0)), json(p.latency(99.0)), p.peakHeap,
+                         p.peakOffHeap, i + 1 == phases.size() ? "" : ",");
+            }
+            w.printf("  ]\n}\n");
+        } finally
+        {
+            w.close();
+        }
+    }
+
+    /**
+     * Compares the throughput to the baseline of the same configuration, the baseline is
+     * created by the first run or with update. Returns the number of regressions.
+     */
+    int compareToBaseline() throws IOException
+    {
+        Properties stored = new Properties();
+        if(baseline.exists())
+        {
+            FileInputStream in = new FileInputStream(baseline);
+            try
+            {
+                stored.load(in);
+            } finally
+            {
+                in.close();
+            }
+        }
+        int regressions = 0;
+        boolean changed = false;
+        for(Phase p : phases)
+        {
+            double mbps = p.throughput();
+            if(Double.isNaN(mbps))
+            {
+                continue;
+            }
+            String key = configuration() + "." + p.key();
+            String value = stored.getProperty(key);
+            if(value == null || update)
+            {
+                stored.setProperty(key, String.format(Locale.ROOT, "%.1f", mbps));
+                changed = true;
+                continue;
+            }
+            double base = Double.parseDouble(value);
+            if(mbps < base * (1.0 - tolerance))
+            {
+                regressions++;
+                System.out.printf("REGRESSION %s: %.1f MB/s, baseline %.1f MB/s\n", p.key(),
+                                  mbps, base);
+            }
+        }
+        if(changed)
+        {
+            FileOutputStream out = new FileOutputStream(baseline);
+            try
+            {
+                stored.store(out, "KCT DEN I/O regression suite baseline in MB/s");
+            } finally
+            {
+                out.close();
+            }
+            System.out.printf("Baseline stored to %s\n", baseline.getPath());
+        }
+        System.out.printf("%d regressions with the tolerance %.0f %%\n", regressions,
+                          tolerance * 100.0);
+        return regressions;
+    }
+}